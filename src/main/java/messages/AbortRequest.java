@@ -9,11 +9,11 @@ public class AbortRequest extends Message {
 
 	@Override
 	protected void writeAsTokens(TokenWriter writer) {
-		writer.writeToken(new Integer(transactionID).toString());		
+		writer.writeInt(transactionID);		
 	}
 
 	@Override
 	protected void readFromTokens(TokenReader reader) {
-		transactionID = Integer.parseInt(reader.readToken());		
+		transactionID = reader.readInt();		
 	}
 }
@@ -0,0 +1,57 @@
+package messages;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes tokens written by a `BinaryTokenWriter` in place from a `ByteBuffer`.
+ * Like the other readers, `readToken` returns null once the buffer is exhausted.
+ */
+public class BinaryTokenReader extends TokenReader {
+	private final ByteBuffer buffer;
+
+	public BinaryTokenReader(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	@Override
+	public String readToken() {
+		if (!buffer.hasRemaining()) {
+			return null;
+		}
+		int length = readVarInt() - 1;
+		if (length < 0) {
+			return null;
+		}
+		if (buffer.hasArray()) {
+			String token = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+			buffer.position(buffer.position() + length);
+			return token;
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public int readInt() {
+		int raw = readVarInt();
+		return (raw >>> 1) ^ -(raw & 1);
+	}
+
+	public byte readByte() {
+		return buffer.get();
+	}
+
+	public int readVarInt() {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			byte b = buffer.get();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IllegalStateException("Malformed varint");
+	}
+}
@@ -0,0 +1,92 @@
+package messages;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes tokens straight into a growable heap `ByteBuffer`.
+ *
+ * Strings are written as a varint of (byte length + 1) followed by their UTF-8
+ * bytes, so a length of 0 encodes `null` and embedded whitespace survives.
+ * Ints are zig-zag varints, so small and negative (eg. -1) values take one byte.
+ */
+public class BinaryTokenWriter extends TokenWriter {
+	private ByteBuffer buffer;
+
+	public BinaryTokenWriter() {
+		this(64);
+	}
+
+	public BinaryTokenWriter(int initialCapacity) {
+		buffer = ByteBuffer.allocate(initialCapacity);
+	}
+
+	@Override
+	public void writeToken(String token) {
+		if (token == null) {
+			writeVarInt(0);
+			return;
+		}
+		byte[] bytes = token.getBytes(StandardCharsets.UTF_8);
+		writeVarInt(bytes.length + 1);
+		ensureRemaining(bytes.length);
+		buffer.put(bytes);
+	}
+
+	@Override
+	public void writeInt(int value) {
+		writeVarInt((value << 1) ^ (value >> 31));
+	}
+
+	public void writeByte(byte b) {
+		ensureRemaining(1);
+		buffer.put(b);
+	}
+
+	/** unsigned LEB128 */
+	public void writeVarInt(int value) {
+		ensureRemaining(5);
+		while ((value & ~0x7F) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	/** reserves `count` bytes to be filled in later with `putIntAt` */
+	public int skip(int count) {
+		ensureRemaining(count);
+		int at = buffer.position();
+		buffer.position(at + count);
+		return at;
+	}
+
+	public void putIntAt(int index, int value) {
+		buffer.putInt(index, value);
+	}
+
+	public int position() {
+		return buffer.position();
+	}
+
+	/** backing array; valid bytes are [0, position()) */
+	public byte[] array() {
+		return buffer.array();
+	}
+
+	/** @return a read-only view of everything written so far */
+	public ByteBuffer toByteBuffer() {
+		ByteBuffer written = buffer.duplicate();
+		written.flip();
+		return written.asReadOnlyBuffer();
+	}
+
+	private void ensureRemaining(int needed) {
+		if (buffer.remaining() < needed) {
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+			buffer.flip();
+			bigger.put(buffer);
+			buffer = bigger;
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package messages;
+
+import util.DecisionMap;
+import util.SongTuple;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Snapshot of a node's durable state, written as the first record of a truncated DTLog.
+ *
+ * Its transactionID is the last transaction decided before the snapshot. The decisions
+ * of the newest transactions are carried along so that peers can still learn the
+ * outcome of transactions whose records were truncated away; older ones are dropped,
+ * so the checkpoint stays the same size however long the node has been up.
+ */
+public class Checkpoint extends Message {
+
+	private Collection<SongTuple> playlist;
+	private DecisionMap decisions;
+	/* the decisions of transactions up to this one may have been dropped */
+	private int forgottenThrough;
+
+	public Checkpoint(int lastDecidedTransactionID, Collection<SongTuple> playlist, DecisionMap decisions, int forgottenThrough) {
+		super(Command.CHECKPOINT, lastDecidedTransactionID);
+		this.playlist = playlist;
+		this.decisions = decisions;
+		this.forgottenThrough = forgottenThrough;
+	}
+
+	public Collection<SongTuple> getPlaylist() {
+		return playlist;
+	}
+
+	public DecisionMap getDecisions() {
+		return decisions;
+	}
+
+	public int getForgottenThrough() {
+		return forgottenThrough;
+	}
+
+	/**
+	 * the decisions are written as the IDs of the committed transactions, then of the
+	 * aborted ones, rather than as a token each
+	 */
+	@Override
+	protected void writeAsTokens(TokenWriter writer) {
+		writer.writeInt(transactionID);
+		writer.writeInt(playlist.size());
+		for (SongTuple song : playlist) {
+			song.writeAsTokens(writer);
+		}
+		writer.writeInt(forgottenThrough);
+		writeDecided(writer, Command.COMMIT);
+		writeDecided(writer, Command.ABORT);
+	}
+
+	private void writeDecided(TokenWriter writer, Command decided) {
+		List<Integer> ids = new ArrayList<>();
+		decisions.forEach((decision, txnID) -> {
+			if (decision == decided) {
+				ids.add(txnID);
+			}
+		});
+		writer.writeInt(ids.size());
+		ids.forEach(writer::writeInt);
+	}
+
+	@Override
+	protected void readFromTokens(TokenReader reader) {
+		transactionID = reader.readInt();
+		int numSongs = reader.readInt();
+		playlist = new ArrayList<>(numSongs);
+		for (int i = 0; i < numSongs; ++i) {
+			playlist.add(SongTuple.readFromTokens(reader));
+		}
+		forgottenThrough = reader.readInt();
+		decisions = new DecisionMap();
+		readDecided(reader, Command.COMMIT);
+		readDecided(reader, Command.ABORT);
+	}
+
+	private void readDecided(TokenReader reader, Command decided) {
+		int count = reader.readInt();
+		for (int i = 0; i < count; ++i) {
+			decisions.put(reader.readInt(), decided);
+		}
+	}
+}
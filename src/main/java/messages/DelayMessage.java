@@ -1,13 +1,11 @@
 package messages;
 
-import sun.reflect.generics.reflectiveObjects.NotImplementedException;
-
 /**
  * Ethan Petuchowski 3/6/15
  */
 public class DelayMessage extends Message {
 
-    protected final int delaySec;
+    protected int delaySec;
 
     public DelayMessage(int delaySeconds) {
         super(Command.DELAY);
@@ -19,10 +17,10 @@ public class DelayMessage extends Message {
     }
 
     @Override protected void writeAsTokens(TokenWriter writer) {
-        throw new NotImplementedException();
+        writer.writeInt(delaySec);
     }
 
     @Override protected void readFromTokens(TokenReader reader) {
-        throw new NotImplementedException();
+        delaySec = reader.readInt();
     }
 }
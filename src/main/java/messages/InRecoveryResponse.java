@@ -1,5 +1,6 @@
 package messages;
 
+import java.util.ArrayList;
 import java.util.Collection;
 
 public class InRecoveryResponse extends Message {
@@ -17,14 +18,19 @@ public class InRecoveryResponse extends Message {
 	
 	@Override
 	protected void writeAsTokens(TokenWriter writer) {
-		// TODO Auto-generated method stub
-
+		writer.writeInt(lastUpSet.size());
+		for (int nodeID : lastUpSet) {
+			writer.writeInt(nodeID);
+		}
 	}
 
 	@Override
 	protected void readFromTokens(TokenReader reader) {
-		// TODO Auto-generated method stub
-
+		int size = reader.readInt();
+		lastUpSet = new ArrayList<>(size);
+		for (int i = 0; i < size; ++i) {
+			lastUpSet.add(reader.readInt());
+		}
 	}
 
 }
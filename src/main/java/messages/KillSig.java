@@ -1,15 +1,17 @@
 package messages;
 
 import messages.vote_req.VoteRequest;
-import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 import util.Common;
 
+import java.util.Collection;
+import java.util.Collections;
+
 /**
  * Ethan Petuchowski 3/5/15
  */
 public class KillSig extends VoteRequest {
 
-    final int nodeID;
+    int nodeID;
 
     public KillSig(int nodeID) {
         super(Command.KILL_SIG, Common.NO_ONGOING_TRANSACTION, null);
@@ -21,14 +23,21 @@ public class KillSig extends VoteRequest {
     }
 
     @Override protected void writeAsTokens(TokenWriter writer) {
-        throw new NotImplementedException();
+        writer.writeInt(nodeID);
     }
 
     @Override protected void readFromTokens(TokenReader reader) {
-        throw new NotImplementedException();
+        nodeID = reader.readInt();
     }
 
     @Override protected String actionLogString() {
-        throw new NotImplementedException();
+        return String.valueOf(nodeID);
+    }
+
+    /**
+     * touches no songs, so never conflicts with a transaction in flight
+     */
+    @Override public Collection<String> getSongNames() {
+        return Collections.emptyList();
     }
 }
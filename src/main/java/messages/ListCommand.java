@@ -1,9 +1,11 @@
 package messages;
 
 import messages.vote_req.VoteRequest;
-import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 import util.Common;
 
+import java.util.Collection;
+import java.util.Collections;
+
 /**
  * Ethan Petuchowski 3/8/15
  */
@@ -14,14 +16,22 @@ public class ListCommand extends VoteRequest {
     }
 
     @Override protected void writeAsTokens(TokenWriter writer) {
-        throw new NotImplementedException();
     }
 
     @Override protected void readFromTokens(TokenReader reader) {
-        throw new NotImplementedException();
     }
 
+    /**
+     * takes no arguments, just as it writes no tokens
+     */
     @Override protected String actionLogString() {
-        throw new NotImplementedException();
+        return "";
+    }
+
+    /**
+     * touches no songs, so never conflicts with a transaction in flight
+     */
+    @Override public Collection<String> getSongNames() {
+        return Collections.emptyList();
     }
 }
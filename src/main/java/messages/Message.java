@@ -1,8 +1,11 @@
 package messages;
 
 import messages.vote_req.AddRequest;
+import messages.vote_req.BatchRequest;
 import messages.vote_req.DeleteRequest;
 import messages.vote_req.UpdateRequest;
+import system.failures.DeathAfter;
+import system.failures.PartialBroadcast;
 
 import java.io.Serializable;
 
@@ -32,6 +35,7 @@ public abstract class Message implements Serializable {
         return Command.NONE;
     }
 
+    /* ordinals are persisted by `MessageCodec`, so only ever append new commands */
     public enum Command {
         NONE,
         DUB_COORDINATOR,
@@ -54,7 +58,9 @@ public abstract class Message implements Serializable {
         IN_RECOVERY,
         PARTIAL_BROADCAST,
         DELAY,
-        DEATH_AFTER, LIST;
+        DEATH_AFTER, LIST,
+        CHECKPOINT,
+        BATCH;
 
         public boolean isDecision() {
             return (this == ABORT) || (this == COMMIT);
@@ -81,7 +87,15 @@ public abstract class Message implements Serializable {
     	if (commandString == null) {
     		return null;
     	}
-    	Command command = Command.valueOf(commandString);
+    	Message m = newBlankMessage(Command.valueOf(commandString));
+    	m.readFromTokens(reader);
+    	return m;
+    }
+
+    /**
+     * @return a placeholder of the right type, to be filled in by `readFromTokens`
+     */
+    static Message newBlankMessage(Command command) {
     	Message m = null;
     	switch (command) {
 		case ABORT:
@@ -120,10 +134,45 @@ public abstract class Message implements Serializable {
 		case TIMEOUT:
 			m = new PeerTimeout(-1);
 			break;
+		case CHECKPOINT:
+			m = new Checkpoint(-1, null, null, -1);
+			break;
+		case NODE:
+			m = new NodeMessage(-1, -1);
+			break;
+		case DECISION_REQUEST:
+			m = new DecisionRequest(-1);
+			break;
+		case STATE_REQUEST:
+			m = new StateRequest(-1);
+			break;
+		case UNCERTAIN:
+			m = new UncertainResponse(-1);
+			break;
+		case KILL_SIG:
+			m = new KillSig(-1);
+			break;
+		case IN_RECOVERY:
+			m = new InRecoveryResponse(-1, null);
+			break;
+		case PARTIAL_BROADCAST:
+			m = new PartialBroadcast(null, -1, -1);
+			break;
+		case DELAY:
+			m = new DelayMessage(0);
+			break;
+		case DEATH_AFTER:
+			m = new DeathAfter(-1, -1, -1);
+			break;
+		case LIST:
+			m = new ListCommand();
+			break;
+		case BATCH:
+			m = new BatchRequest(null, -1, null);
+			break;
 		default:
 			throw new RuntimeException("Cannot read message from tokens");
     	}
-    	m.readFromTokens(reader);
     	return m;
     }
 }
@@ -0,0 +1,122 @@
+package messages;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Length-prefixed, checksummed binary encoding of a `Message`
+ *
+ *      [int length][int crc][byte command][varint txnID][payload tokens]
+ *
+ * `length` counts the bytes following the crc, and the crc covers exactly those bytes.
+ * The txnID is duplicated into the header so a record can be classified without
+ * decoding its payload.
+ */
+public class MessageCodec {
+	public static final int HEADER_BYTES = 8;
+
+	public static ByteBuffer encode(Message m) {
+		return encodeRecord(m).toByteBuffer();
+	}
+
+	/**
+	 * writes the message's record to the stream without copying it out of the encoder
+	 */
+	public static void encode(Message m, OutputStream out) throws IOException {
+		BinaryTokenWriter writer = encodeRecord(m);
+		out.write(writer.array(), 0, writer.position());
+	}
+
+	private static BinaryTokenWriter encodeRecord(Message m) {
+		BinaryTokenWriter writer = new BinaryTokenWriter();
+		int header = writer.skip(HEADER_BYTES);
+		writer.writeByte((byte) m.getCommand().ordinal());
+		writer.writeInt(m.getTransactionID());
+		m.writeAsTokens(writer);
+
+		int bodyLength = writer.position() - HEADER_BYTES;
+		writer.putIntAt(header, bodyLength);
+		writer.putIntAt(header + 4, checksum(writer.array(), HEADER_BYTES, bodyLength));
+		return writer;
+	}
+
+	/**
+	 * Decodes the record at the buffer's position and advances past it.
+	 *
+	 * @return null, leaving the position untouched, if the buffer does not start with a
+	 *         complete record whose checksum matches (eg. the tail of a torn write)
+	 */
+	public static Message decode(ByteBuffer buffer) {
+		ByteBuffer body = nextRecordBody(buffer);
+		if (body == null) {
+			return null;
+		}
+		return decodeBody(body);
+	}
+
+	/**
+	 * @param body a record body as returned by `nextRecordBody`; its position is not moved
+	 */
+	public static Message decodeBody(ByteBuffer body) {
+		BinaryTokenReader reader = new BinaryTokenReader(body.duplicate());
+		Message m = Message.newBlankMessage(Message.Command.values()[reader.readByte()]);
+		m.transactionID = reader.readInt();
+		m.readFromTokens(reader);
+		return m;
+	}
+
+	/**
+	 * reads the command out of a record body's header without decoding its payload
+	 */
+	public static Message.Command commandOf(ByteBuffer body) {
+		return Message.Command.values()[body.get(body.position())];
+	}
+
+	/**
+	 * reads the transaction ID out of a record body's header without decoding its payload
+	 */
+	public static int transactionIDOf(ByteBuffer body) {
+		BinaryTokenReader reader = new BinaryTokenReader(body.duplicate());
+		reader.readByte();
+		return reader.readInt();
+	}
+
+	/**
+	 * @return a view of the next record's body (command onwards) after validating it,
+	 *         or null if there is no intact record at the buffer's position
+	 */
+	public static ByteBuffer nextRecordBody(ByteBuffer buffer) {
+		if (buffer.remaining() < HEADER_BYTES) {
+			return null;
+		}
+		int start = buffer.position();
+		int length = buffer.getInt(start);
+		int crc = buffer.getInt(start + 4);
+		if (length <= 0 || length > buffer.remaining() - HEADER_BYTES) {
+			return null;
+		}
+		ByteBuffer body = buffer.duplicate();
+		body.position(start + HEADER_BYTES);
+		body.limit(start + HEADER_BYTES + length);
+		body = body.slice();
+		if (checksum(body) != crc) {
+			return null;
+		}
+		buffer.position(start + HEADER_BYTES + length);
+		return body;
+	}
+
+	private static int checksum(byte[] bytes, int offset, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes, offset, length);
+		return (int) crc.getValue();
+	}
+
+	private static int checksum(ByteBuffer body) {
+		CRC32 crc = new CRC32();
+		crc.update(body.duplicate());
+		return (int) crc.getValue();
+	}
+}
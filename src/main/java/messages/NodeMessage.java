@@ -1,7 +1,5 @@
 package messages;
 
-import sun.reflect.generics.reflectiveObjects.NotImplementedException;
-
 /**
  * Ethan Petuchowski 3/3/15
  */
@@ -12,8 +10,8 @@ public class NodeMessage extends Message {
         this.listenPort = listenPort;
     }
 
-    final int nodeID;
-    final int listenPort;
+    int nodeID;
+    int listenPort;
 
     public int getNodeID() {
         return nodeID;
@@ -24,10 +22,12 @@ public class NodeMessage extends Message {
     }
 
     @Override protected void writeAsTokens(TokenWriter writer) {
-        throw new NotImplementedException();
+        writer.writeInt(nodeID);
+        writer.writeInt(listenPort);
     }
 
     @Override protected void readFromTokens(TokenReader reader) {
-        throw new NotImplementedException();
+        nodeID = reader.readInt();
+        listenPort = reader.readInt();
     }
 }
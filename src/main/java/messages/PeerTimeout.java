@@ -14,11 +14,11 @@ public class PeerTimeout extends Message {
 
 	@Override
 	protected void writeAsTokens(TokenWriter writer) {
-		writer.writeToken(new Integer(peerId).toString());
+		writer.writeInt(peerId);
 	}
 
 	@Override
 	protected void readFromTokens(TokenReader reader) {
-		peerId = Integer.parseInt(reader.readToken());
+		peerId = reader.readInt();
 	}
 }
@@ -8,14 +8,12 @@ public class StateRequest extends Message {
 	
 	@Override
 	protected void writeAsTokens(TokenWriter writer) {
-		// TODO Auto-generated method stub
-
+		writer.writeInt(transactionID);
 	}
 
 	@Override
 	protected void readFromTokens(TokenReader reader) {
-		// TODO Auto-generated method stub
-
+		transactionID = reader.readInt();
 	}
 
 }
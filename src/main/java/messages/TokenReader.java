@@ -2,4 +2,8 @@ package messages;
 
 public abstract class TokenReader {
 	public abstract String readToken();
+
+	public int readInt() {
+		return Integer.parseInt(readToken());
+	}
 }
@@ -2,4 +2,8 @@ package messages;
 
 public abstract class TokenWriter {
 	public abstract void writeToken(String token);
+
+	public void writeInt(int value) {
+		writeToken(Integer.toString(value));
+	}
 }
@@ -6,6 +6,7 @@ import node.PeerReference;
 import util.SongTuple;
 
 import java.util.Collection;
+import java.util.Collections;
 
 /**
  * Ethan Petuchowski 2/27/15
@@ -22,6 +23,10 @@ public class AddRequest extends VoteRequest {
         return songTuple;
     }
 
+    @Override public Collection<String> getSongNames() {
+        return Collections.singletonList(songTuple.getName());
+    }
+
     SongTuple songTuple;
 
     @Override protected String actionLogString() {
@@ -30,14 +35,14 @@ public class AddRequest extends VoteRequest {
 
 	@Override
 	protected void writeAsTokens(TokenWriter writer) {
-		writer.writeToken(new Integer(transactionID).toString());
+		writer.writeInt(transactionID);
 		writePeerSetAsTokens(writer);
 		songTuple.writeAsTokens(writer);		
 	}
 
 	@Override
 	protected void readFromTokens(TokenReader reader) {
-		transactionID = Integer.parseInt(reader.readToken());
+		transactionID = reader.readInt();
 		readPeerSetAsTokens(reader);
 		songTuple = SongTuple.readFromTokens(reader);		
 	}
@@ -0,0 +1,98 @@
+package messages.vote_req;
+
+import messages.TokenReader;
+import messages.TokenWriter;
+import node.PeerReference;
+import util.SongTuple;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * An ordered list of ADD, UPDATE and DELETE operations voted on, logged, and applied
+ * as one transaction: either every operation takes effect, or none does.
+ *
+ * Each operation shares the batch's transaction ID and peer set, so only its own
+ * fields go on the wire.
+ */
+public class BatchRequest extends VoteRequest {
+
+    List<VoteRequest> operations;
+
+    public BatchRequest(List<VoteRequest> operations, int transactionID, Collection<PeerReference> peerSet) {
+        super(Command.BATCH, transactionID, peerSet);
+        this.operations = operations;
+    }
+
+    public List<VoteRequest> getOperations() {
+        return Collections.unmodifiableList(operations);
+    }
+
+    @Override public Collection<String> getSongNames() {
+        Collection<String> names = new LinkedHashSet<>();
+        for (VoteRequest operation : operations) {
+            names.addAll(operation.getSongNames());
+        }
+        return names;
+    }
+
+    @Override protected String actionLogString() {
+        StringBuilder sb = new StringBuilder();
+        for (VoteRequest operation : operations) {
+            sb.append(operation.getCommand()).append(" ").append(operation.actionLogString()).append("\n");
+        }
+        return sb.toString();
+    }
+
+	@Override
+	protected void writeAsTokens(TokenWriter writer) {
+		writer.writeInt(transactionID);
+		writePeerSetAsTokens(writer);
+		writer.writeInt(operations.size());
+		for (VoteRequest operation : operations) {
+			writer.writeToken(operation.getCommand().toString());
+			switch (operation.getCommand()) {
+			case ADD:
+				((AddRequest) operation).songTuple.writeAsTokens(writer);
+				break;
+			case UPDATE:
+				writer.writeToken(((UpdateRequest) operation).songName);
+				((UpdateRequest) operation).updatedSong.writeAsTokens(writer);
+				break;
+			case DELETE:
+				writer.writeToken(((DeleteRequest) operation).songName);
+				break;
+			default:
+				throw new RuntimeException("Can't batch a "+operation.getCommand());
+			}
+		}
+	}
+
+	@Override
+	protected void readFromTokens(TokenReader reader) {
+		transactionID = reader.readInt();
+		readPeerSetAsTokens(reader);
+		int size = reader.readInt();
+		operations = new ArrayList<>(size);
+		for (int i = 0; i < size; ++i) {
+			Command command = Command.valueOf(reader.readToken());
+			switch (command) {
+			case ADD:
+				operations.add(new AddRequest(SongTuple.readFromTokens(reader), transactionID, getPeerSet()));
+				break;
+			case UPDATE:
+				String songName = reader.readToken();
+				operations.add(new UpdateRequest(songName, SongTuple.readFromTokens(reader), transactionID, getPeerSet()));
+				break;
+			case DELETE:
+				operations.add(new DeleteRequest(reader.readToken(), transactionID, getPeerSet()));
+				break;
+			default:
+				throw new RuntimeException("Can't batch a "+command);
+			}
+		}
+	}
+}
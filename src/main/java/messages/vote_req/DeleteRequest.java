@@ -6,6 +6,7 @@ import messages.TokenWriter;
 import node.PeerReference;
 
 import java.util.Collection;
+import java.util.Collections;
 
 /**
  * Ethan Petuchowski 2/27/15
@@ -22,20 +23,24 @@ public class DeleteRequest extends VoteRequest {
         return songName;
     }
 
+    @Override public Collection<String> getSongNames() {
+        return Collections.singletonList(songName);
+    }
+
     @Override protected String actionLogString() {
         return songName;
     }
 
 	@Override
 	protected void writeAsTokens(TokenWriter writer) {
-		writer.writeToken(new Integer(transactionID).toString());		
+		writer.writeInt(transactionID);		
 		writePeerSetAsTokens(writer);
 		writer.writeToken(songName);		
 	}
 
 	@Override
 	protected void readFromTokens(TokenReader reader) {
-		transactionID = Integer.parseInt(reader.readToken());
+		transactionID = reader.readInt();
 		readPeerSetAsTokens(reader);
 		songName = reader.readToken();		
 	}
@@ -5,6 +5,7 @@ import messages.TokenWriter;
 import node.PeerReference;
 import util.SongTuple;
 
+import java.util.Arrays;
 import java.util.Collection;
 
 /**
@@ -31,13 +32,18 @@ public class UpdateRequest extends VoteRequest {
         return updatedSong;
     }
 
+    /* a rename touches both the old name and the new one */
+    @Override public Collection<String> getSongNames() {
+        return Arrays.asList(songName, updatedSong.getName());
+    }
+
     @Override protected String actionLogString() {
         return songName+"\n"+updatedSong.toLogString();
     }
 
 	@Override
 	protected void writeAsTokens(TokenWriter writer) {
-		writer.writeToken(new Integer(transactionID).toString());
+		writer.writeInt(transactionID);
 		writePeerSetAsTokens(writer);
 		writer.writeToken(songName);		
 		updatedSong.writeAsTokens(writer);
@@ -45,7 +51,7 @@ public class UpdateRequest extends VoteRequest {
 
 	@Override
 	protected void readFromTokens(TokenReader reader) {
-		transactionID = Integer.parseInt(reader.readToken());
+		transactionID = reader.readInt();
 		readPeerSetAsTokens(reader);
 		songName = reader.readToken();
 		updatedSong = SongTuple.readFromTokens(reader);
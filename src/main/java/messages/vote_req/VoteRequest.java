@@ -4,29 +4,28 @@ import messages.Message;
 import messages.TokenReader;
 import messages.TokenWriter;
 import node.PeerReference;
+import node.PeerSet;
 
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.stream.Collectors;
 
 /**
  * Ethan Petuchowski 2/27/15
  */
 public abstract class VoteRequest extends Message {
 
-    private Collection<PeerReference> peerSet;
+    private PeerSet peerSet;
 
     public VoteRequest(Command command, int transactionID, Collection<PeerReference> peerSet) {
         super(command, transactionID);
-        this.peerSet = peerSet;
+        this.peerSet = PeerSet.of(peerSet);
     }
 
-    public Collection<PeerReference> getPeerSet() {
+    public PeerSet getPeerSet() {
         return peerSet;
     }
 
-    public Collection<PeerReference> getCloneOfPeerSet() {
-        return getPeerSet().stream().map(PeerReference::clone).collect(Collectors.toList());
+    public PeerSet getCloneOfPeerSet() {
+        return peerSet.copy();
     }
 
     public String getPeerSetLogString() {
@@ -41,28 +40,31 @@ public abstract class VoteRequest extends Message {
     }
 
     protected void writePeerSetAsTokens(TokenWriter writer) {
-    	writer.writeToken(new Integer(peerSet.size()).toString());
+    	writer.writeInt(peerSet.size());
         for (PeerReference peer : peerSet) {
-            writer.writeToken(new Integer(peer.getNodeID()).toString());
-            writer.writeToken(new Integer(peer.getListeningPort()).toString());
+            writer.writeInt(peer.getNodeID());
+            writer.writeInt(peer.getListeningPort());
         }
     }
 
     protected void readPeerSetAsTokens(TokenReader reader) {
-    	int size = Integer.parseInt(reader.readToken());
-    	ArrayList<PeerReference> peers = new ArrayList<PeerReference>();
+    	int size = reader.readInt();
+    	PeerSet peers = new PeerSet();
     	for (int i = 0; i < size; ++i) {
-    		PeerReference peer = new PeerReference(
-    				Integer.parseInt(reader.readToken()),
-    				Integer.parseInt(reader.readToken()));
-    		peers.add(peer);
+    		peers.add(reader.readInt(), reader.readInt());
     	}
     	peerSet = peers;
     }
 
     public void setPeerSet(Collection<PeerReference> peerSet) {
-        this.peerSet = peerSet;
+        this.peerSet = PeerSet.of(peerSet);
     }
 
     protected abstract String actionLogString();
+
+    /**
+     * @return the names of the songs this request reads or writes; two requests sharing
+     *         one can't be in flight at once
+     */
+    public abstract Collection<String> getSongNames();
 }
@@ -17,14 +17,28 @@ import system.network.Connection;
 import util.Common;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.stream.Collectors;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 
 import static util.Common.NO_ONGOING_TRANSACTION;
 
 /**
  * Ethan Petuchowski 2/28/15
+ *
+ * Runs any number of transactions at once (up to `Common.MAX_TRANSACTIONS_IN_FLIGHT`),
+ * each with its own state and counters, and routes every response to its transaction by
+ * ID. A command for a song that an earlier transaction still holds waits until that one
+ * is decided, so transactions in flight never touch the same song.
  */
 public class CoordinatorStateMachine extends StateMachine {
 	public enum CoordinatorState {
@@ -34,43 +48,89 @@ public class CoordinatorStateMachine extends StateMachine {
 		WaitingForStates
 	}
 
-	private CoordinatorState state;
-	private Collection<Connection> txnConnections;
-	private VoteRequest action;
-	private int yesVotes;
-	private int ongoingTransactionID;
-	private int acks;
+	/**
+	 * what the coordinator knows about one of its transactions
+	 */
+	private static class Transaction {
+		final VoteRequest action;
+		final int id;
+		CoordinatorState state;
+		PeerSet peerSet;
+		Collection<Connection> txnConnections = new ArrayList<>();
+
+		/* peers yet to answer this transaction's current phase */
+		final Set<Integer> awaiting = new HashSet<>();
+
+		int yesVotes;
+		int acks;
+
+		// for termination protocol
+		int uncertainStates;
+		int precommits;
+
+		Transaction(VoteRequest action) {
+			this.action = action;
+			this.id = action.getTransactionID();
+		}
+
+		boolean involves(int peerID) {
+			return peerSet.contains(peerID);
+		}
+
+		void forget(int peerID, Connection conn) {
+			peerSet.remove(peerID);
+			awaiting.remove(peerID);
+			if (conn != null) {
+				txnConnections.remove(conn);
+			}
+		}
+	}
 
-	// for termination protocol
-	private int uncertainStates;
-	private int precommits;
+	/* oldest first */
+	private final Map<Integer, Transaction> inFlight = new LinkedHashMap<>();
+
+	/* the transaction in flight holding each song */
+	private final Map<String, Integer> songsInFlight = new HashMap<>();
+
+	/* commands waiting for their songs or for a free slot, in arrival order */
+	private final Queue<VoteRequest> deferred = new ArrayDeque<>();
 
 	public static CoordinatorStateMachine startInTerminationProtocol(Node ownerNode, VoteRequest action, boolean precommitted) {
+		return startInTerminationProtocol(
+				ownerNode,
+				Collections.singletonList(action),
+				precommitted ? Collections.singleton(action.getTransactionID()) : Collections.emptySet());
+	}
+
+	/**
+	 * @param precommitted IDs of the `actions` this node had received a PRE_COMMIT for
+	 */
+	public static CoordinatorStateMachine startInTerminationProtocol(Node ownerNode, List<VoteRequest> actions, Set<Integer> precommitted) {
 		CoordinatorStateMachine machine = new CoordinatorStateMachine(ownerNode);
-		machine.action = action;
-		machine.ongoingTransactionID = action.getTransactionID();
-		machine.state = CoordinatorState.WaitingForStates;
-        machine.setPeerSet(action.getPeerSet());
-        machine.acks = 1;
-        if (precommitted) {
-            machine.precommits = 1;
-        }
-        else {
-            machine.uncertainStates = 1;
-        }
-		Collection<PeerReference> notMe = ownerNode.getUpSet().stream().filter(pr -> pr.getNodeID() != ownerNode.getMyNodeID()).collect(Collectors.toList());
-        if (notMe.isEmpty()) {
-            machine.txnConnections = new ArrayList<>();
-            if (precommitted) {
-                machine.commitCurrentAction();
-            }
-            else {
-                machine.abortCurrentTransaction();
-            }
-        }
-        else {
-            machine.setupTransactionConnectionsAndSendMessage(new StateRequest(machine.ongoingTransactionID), notMe);
-        }
+		PeerSet notMe = ownerNode.getUpSet().without(ownerNode.getMyNodeID());
+		for (VoteRequest action : actions) {
+			Transaction txn = machine.begin(action, CoordinatorState.WaitingForStates);
+			txn.peerSet = action.getPeerSet();
+			txn.acks = 1;
+			boolean wasPrecommitted = precommitted.contains(txn.id);
+			if (wasPrecommitted) {
+				txn.precommits = 1;
+			}
+			else {
+				txn.uncertainStates = 1;
+			}
+			if (notMe.isEmpty()) {
+				if (wasPrecommitted) {
+					machine.commit(txn);
+				}
+				else {
+					machine.abort(txn);
+				}
+			}
+			else {
+				machine.setupTransactionConnectionsAndSendMessage(txn, new StateRequest(txn.id), notMe);
+			}
+		}
 		return machine;
 	}
 
@@ -80,19 +140,43 @@ public class CoordinatorStateMachine extends StateMachine {
 
 	private CoordinatorStateMachine(Node ownerNode) {
         super(ownerNode);
-		resetToWaiting();
+		setPeerSet(null);
+		ownerNode.cancelAllTimers();
 	}
 
+	/**
+	 * @return the state of the oldest transaction in flight
+	 */
 	public CoordinatorState getState() {
-		return state;
+		return inFlight.isEmpty() ? CoordinatorState.WaitingForCommand : oldest().state;
 	}
 
+	public CoordinatorState getState(int transactionID) {
+		Transaction txn = inFlight.get(transactionID);
+		return txn == null ? CoordinatorState.WaitingForCommand : txn.state;
+	}
+
+	/**
+	 * @return the ID of the oldest transaction in flight
+	 */
 	public int getOngoingTransactionId() {
-		return ongoingTransactionID;
+		return inFlight.isEmpty() ? NO_ONGOING_TRANSACTION : oldest().id;
 	}
 
 	public VoteRequest getAction() {
-		return action;
+		return inFlight.isEmpty() ? null : oldest().action;
+	}
+
+	public int getTransactionsInFlight() {
+		return inFlight.size();
+	}
+
+	@Override public PeerSet getPeerSet() {
+		return inFlight.isEmpty() ? null : oldest().peerSet;
+	}
+
+	private Transaction oldest() {
+		return inFlight.values().iterator().next();
 	}
 
     @Override public boolean receiveMessage(Connection overConnection, Message message) {
@@ -100,46 +184,47 @@ public class CoordinatorStateMachine extends StateMachine {
             System.out.println("Coordinator "+ownerNode.getMyNodeID()+" "+
                                "received a "+message.getCommand()+" from "+overConnection.getReceiverID());
 
+            final int senderID = overConnection.getReceiverID();
+            Transaction txn;
             switch (message.getCommand()) {
                 case ADD:
                 case UPDATE:
                 case DELETE:
-                    if (overConnection.getReceiverID() > 0
-                     && overConnection.getReceiverID() < ownerNode.getMyNodeID())
-                    {
+                case BATCH:
+                    if (senderID > 0 && senderID < ownerNode.getMyNodeID()) {
                         ownerNode.becomeParticipant();
                         ownerNode.getStateMachine().receiveMessage(overConnection, message);
                     }
-                    if (state == CoordinatorState.WaitingForCommand) {
-                        receivePlaylistCommand((VoteRequest) message);
-                        break;
-                    }
-                    else
-                        throw new RuntimeException("Received command when not waiting for one");
+                    receivePlaylistCommand((VoteRequest) message);
+                    break;
                 case YES:
-                    ownerNode.cancelTimersFor(overConnection.getReceiverID());
-                    if (state == CoordinatorState.WaitingForVotes) {
-                        ++yesVotes;
-                        checkForEnoughYesVotes();
+                    txn = heardFrom(senderID, message);
+                    if (txn != null && txn.state == CoordinatorState.WaitingForVotes) {
+                        ++txn.yesVotes;
+                        checkForEnoughYesVotes(txn);
                     }
                     break;
                 case NO:
-                    ownerNode.cancelTimersFor(overConnection.getReceiverID());
-                    if (state == CoordinatorState.WaitingForVotes) {
-                        abortCurrentTransaction();
+                    txn = heardFrom(senderID, message);
+                    if (txn != null && txn.state == CoordinatorState.WaitingForVotes) {
+                        abort(txn);
                     }
                     break;
                 case UNCERTAIN:
-                	if (state == CoordinatorState.WaitingForStates) {
-                		++uncertainStates;
-                		checkForEnoughUncertainStates();
+                    txn = stateReplyFrom(senderID, message);
+                	if (txn != null && txn.state == CoordinatorState.WaitingForStates) {
+                		++txn.uncertainStates;
+                		checkForEnoughUncertainStates(txn);
                 	}
                 	break;
                 case ACK:
-                    ownerNode.cancelTimersFor(overConnection.getReceiverID());
-                    if (state == CoordinatorState.WaitingForAcks) {
-                        ++acks;
-                        checkForEnoughAcks();
+                    txn = heardFrom(senderID, message);
+                    if (txn == null) {
+                        /* the transaction was decided without waiting for this peer */
+                    }
+                    else if (txn.state == CoordinatorState.WaitingForAcks) {
+                        ++txn.acks;
+                        checkForEnoughAcks(txn);
                     }
                     else
                         throw new RuntimeException("Received ACK when not waiting for one");
@@ -147,52 +232,56 @@ public class CoordinatorStateMachine extends StateMachine {
                 case TIMEOUT:
                     int peerID = ((PeerTimeout) message).getPeerId();
                     ownerNode.cancelTimersFor(peerID);
-                    if (ownerNode.getUpSet() == null) {
-                    } else {
-                        PeerReference ref = getPeerSet().stream()
-                                                        .filter(pr -> pr.nodeID == peerID)
-                                                        .findFirst()
-                                                        .get();
+                    if (ownerNode.getUpSet() != null
+                     && inFlight.values().stream().anyMatch(t -> t.involves(peerID)))
+                    {
                         ownerNode.logMessage(message);
-                        onTimeout(ref);
+                        onTimeout(peerID);
                     }
                     break;
 
                 case COMMIT:
-                	if (state == CoordinatorState.WaitingForStates) {
+                    txn = stateReplyFrom(senderID, message);
+                	if (txn != null && txn.state == CoordinatorState.WaitingForStates) {
                 		// remove the connection that sent us COMMIT from txnConnections so that we don't send it a commit.
-                		txnConnections.removeIf(conn -> conn.getReceiverID() == overConnection.getReceiverID());
-                		commitCurrentAction();
+                		txn.txnConnections.removeIf(conn -> conn.getReceiverID() == senderID);
+                		commit(txn);
                 	}
-                	else if (state != CoordinatorState.WaitingForCommand) {
+                	else if (txn != null) {
                 		throw new RuntimeException("Received COMMIT when not expecting one");
                 	}
                 	break;
                 case ABORT:
-                	if (state == CoordinatorState.WaitingForStates) {
+                    txn = stateReplyFrom(senderID, message);
+                	if (txn != null && txn.state == CoordinatorState.WaitingForStates) {
                 		// remove the connection that sent us ABORT from txnConnections so that we don't send it an abort.
-                		txnConnections.removeIf(conn -> conn.getReceiverID() == overConnection.getReceiverID());
-                		abortCurrentTransaction();
+                		txn.txnConnections.removeIf(conn -> conn.getReceiverID() == senderID);
+                		abort(txn);
                 	}
-                	else if (state != CoordinatorState.WaitingForCommand) {
-                		throw new RuntimeException("Received COMMIT when not expecting one");
+                	else if (txn != null) {
+                		throw new RuntimeException("Received ABORT when not expecting one");
                 	}
                 	break;
                 case PRE_COMMIT:
-                	if (state == CoordinatorState.WaitingForStates) {
-                		++precommits;
-                		checkForEnoughUncertainStates();
+                    txn = stateReplyFrom(senderID, message);
+                	if (txn != null && txn.state == CoordinatorState.WaitingForStates) {
+                		++txn.precommits;
+                		checkForEnoughUncertainStates(txn);
                 	}
-                	else if (state != CoordinatorState.WaitingForCommand) {
+                	else if (txn != null) {
                 		throw new RuntimeException("Received PRE_COMMIT when not expecting one");
                 	}
                 	break;
                 case DECISION_REQUEST:
                     /* reply with most-recent decision */
                     try {
-                        if (state == CoordinatorState.WaitingForCommand) {
+                        if (!inFlight.containsKey(message.getTransactionID())) {
                             Message dec = ownerNode.getDecisionFor(message.getTransactionID());
-                            if (dec == null) {
+                            if (dec == null && ownerNode.mayHaveForgottenDecisionFor(message.getTransactionID())) {
+                                /* dropped by a checkpoint long since */
+                                dec = new UncertainResponse(message.getTransactionID());
+                            }
+                            else if (dec == null) {
                                 throw new RuntimeException("Couldn't find decision for txn "+message
                                         .getTransactionID());
                             }
@@ -203,7 +292,7 @@ public class CoordinatorStateMachine extends StateMachine {
 
                     /* either
                         1. this coordinator is leading the charge for a recovery from total failure
-                        2. we haven't come to a decision yet (unlikely)
+                        2. we haven't come to a decision yet
                      */
                         else {
                             ownerNode.send(overConnection, new UncertainResponse(message.getTransactionID()));
@@ -245,58 +334,123 @@ public class CoordinatorStateMachine extends StateMachine {
         return true;
     }
 
-    private void onTimeout(PeerReference peerReference) {
+    /**
+     * notes that the peer answered, and keeps its timer running only if some other
+     * transaction is still waiting on it
+     *
+     * @return the transaction the message was about, if it's still in flight
+     */
+    private Transaction heardFrom(int peerID, Message message) {
+        Transaction txn = inFlight.get(message.getTransactionID());
+        if (txn != null) {
+            txn.awaiting.remove(peerID);
+        }
+        if (inFlight.values().stream().anyMatch(t -> t.awaiting.contains(peerID))) {
+            ownerNode.resetTimersFor(peerID);
+        }
+        else {
+            ownerNode.cancelTimersFor(peerID);
+        }
+        return txn;
+    }
+
+    /**
+     * like `heardFrom`, but a participant with nothing logged answers a STATE_REQUEST
+     * without a transaction ID, which counts for whichever transaction is terminating
+     */
+    private Transaction stateReplyFrom(int peerID, Message message) {
+        Transaction txn = heardFrom(peerID, message);
+        if (txn == null && message.getTransactionID() == NO_ONGOING_TRANSACTION) {
+            txn = inFlight.values().stream()
+                          .filter(t -> t.state == CoordinatorState.WaitingForStates)
+                          .findFirst()
+                          .orElse(null);
+        }
+        return txn;
+    }
+
+    private void onTimeout(int peerID) {
 
         /* inform mgr of timeout */
-        ownerNode.sendTxnMgrMsg(new PeerTimeout(peerReference.getNodeID()));
-
-    	// if we're waiting for a command, a timeout doesn't matter.
-        final Connection refConn = ownerNode.getPeerConnForId(peerReference.nodeID);
-        if (state == CoordinatorState.WaitingForVotes) {
-    		getPeerSet().remove(peerReference);
-            if (refConn != null) {
-                txnConnections.remove(refConn);
+        ownerNode.sendTxnMgrMsg(new PeerTimeout(peerID));
+
+    	// transactions that aren't waiting to hear from the peer don't care.
+        final Connection refConn = ownerNode.getPeerConnForId(peerID);
+        for (Transaction txn : new ArrayList<>(inFlight.values())) {
+            if (!inFlight.containsKey(txn.id) || !txn.involves(peerID)) {
+                continue;
             }
-            abortCurrentTransaction();
-    	}
-    	else if (state == CoordinatorState.WaitingForAcks) {
-    		getPeerSet().remove(peerReference);
-            if (refConn != null) {
-                txnConnections.remove(refConn);
+            if (txn.state == CoordinatorState.WaitingForVotes) {
+                txn.forget(peerID, refConn);
+                abort(txn);
             }
-    		checkForEnoughAcks();
-    	}
+            else if (txn.state == CoordinatorState.WaitingForAcks) {
+                txn.forget(peerID, refConn);
+                checkForEnoughAcks(txn);
+            }
+        }
     }
 
-    private void resetToWaiting() {
-		ongoingTransactionID = NO_ONGOING_TRANSACTION;
-		setPeerSet(null);
-		txnConnections = null;
-		state = CoordinatorState.WaitingForCommand;
-		ownerNode.cancelAllTimers();
+    private void receivePlaylistCommand(VoteRequest message) {
+        if (inFlight.containsKey(message.getTransactionID())) {
+            throw new RuntimeException("Received command for a transaction already in flight");
+        }
+        if (canStartNow(message, Collections.emptySet())
+         && deferred.stream().noneMatch(waiting -> sharesASong(waiting, message)))
+        {
+            startTransaction(message);
+        }
+        else {
+            deferred.add(message);
+        }
     }
 
-    private void receivePlaylistCommand(VoteRequest message) {
+    private boolean canStartNow(VoteRequest message, Set<String> alsoTaken) {
+        return inFlight.size() < Common.MAX_TRANSACTIONS_IN_FLIGHT
+            && message.getSongNames().stream().noneMatch(song -> songsInFlight.containsKey(song)
+                                                              || alsoTaken.contains(song));
+    }
+
+    private static boolean sharesASong(VoteRequest a, VoteRequest b) {
+        return a.getSongNames().stream().anyMatch(b.getSongNames()::contains);
+    }
+
+    /**
+     * starts every deferred command that no longer has to wait, without letting any of
+     * them overtake an earlier one for the same song
+     */
+    private void startDeferred() {
+        Set<String> stillWaiting = new HashSet<>();
+        for (Iterator<VoteRequest> it = deferred.iterator(); it.hasNext(); ) {
+            VoteRequest next = it.next();
+            if (canStartNow(next, stillWaiting)) {
+                it.remove();
+                startTransaction(next);
+            }
+            else {
+                stillWaiting.addAll(next.getSongNames());
+            }
+        }
+    }
+
+    private void startTransaction(VoteRequest message) {
 
     	if (ownerNode.getVoteValue(message))
     	{
 	        // send vote requests to all peers
-	        final Collection<PeerReference> peerSet =
-	                message.getPeerSet().stream()
-	                       .filter(ref -> ref.getNodeID() != ownerNode.getMyNodeID())
-	                       .collect(Collectors.toList());
+	        final PeerSet peerSet = message.getPeerSet().without(ownerNode.getMyNodeID());
 
 	    	ownerNode.logMessage(message);
-            ownerNode.logMessage(new YesResponse(message));
-	        setupTransactionConnectionsAndSendMessage(message, peerSet);
-	        setPeerSet(peerSet);
-	        ownerNode.getPeerConns().addAll(txnConnections);
-
-	        state = CoordinatorState.WaitingForVotes;
-	        action = message;
-	        ongoingTransactionID = message.getTransactionID();
-	        yesVotes = 0;
-	        acks = 0;
+            /* our own YES vote must be durable before anyone else is asked for theirs */
+            ownerNode.logMessage(new YesResponse(message)).join();
+            Transaction txn = begin(message, CoordinatorState.WaitingForVotes);
+            txn.peerSet = peerSet;
+	        setupTransactionConnectionsAndSendMessage(txn, message, peerSet);
+            for (Connection conn : txn.txnConnections) {
+                if (!ownerNode.getPeerConns().contains(conn)) {
+                    ownerNode.getPeerConns().add(conn);
+                }
+            }
     	}
     	else
     	{
@@ -307,7 +461,35 @@ public class CoordinatorStateMachine extends StateMachine {
     	}
     }
 
-	private void setupTransactionConnectionsAndSendMessage(Message message,
+    private Transaction begin(VoteRequest action, CoordinatorState state) {
+        Transaction txn = new Transaction(action);
+        txn.state = state;
+        inFlight.put(txn.id, txn);
+        action.getSongNames().forEach(song -> songsInFlight.put(song, txn.id));
+        return txn;
+    }
+
+    private void finish(Transaction txn) {
+        if (inFlight.remove(txn.id) == null) {
+            return;
+        }
+        txn.action.getSongNames().forEach(song -> songsInFlight.remove(song, txn.id));
+        if (inFlight.isEmpty()) {
+            ownerNode.cancelAllTimers();
+        }
+        else {
+            for (int id = txn.peerSet.lowestID(); id >= 0; id = txn.peerSet.nextID(id+1)) {
+                final int peerID = id;
+                if (inFlight.values().stream().noneMatch(t -> t.awaiting.contains(peerID))) {
+                    ownerNode.cancelTimersFor(peerID);
+                }
+            }
+        }
+        startDeferred();
+    }
+
+	private void setupTransactionConnectionsAndSendMessage(Transaction txn,
+                                                           Message message,
                                                            final Collection<PeerReference> peerSet)
     {
         Collection<Connection> conns = new ArrayList<>();
@@ -316,6 +498,7 @@ public class CoordinatorStateMachine extends StateMachine {
 		for (PeerReference reference : peerSet) {
             /* start timers on everyone */
             ownerNode.resetTimersFor(reference.getNodeID());
+            txn.awaiting.add(reference.getNodeID());
             Connection conn = null;
             try {
                 conn = ownerNode.getOrConnectToPeer(reference);
@@ -331,42 +514,40 @@ public class CoordinatorStateMachine extends StateMachine {
             }
 
 		}
-		txnConnections = conns;
+		txn.txnConnections = conns;
 	}
 
-    private void abortCurrentTransaction() {
-		AbortRequest abort = new AbortRequest(ongoingTransactionID);
+    private void abort(Transaction txn) {
+		AbortRequest abort = new AbortRequest(txn.id);
 		ownerNode.logMessage(abort);
-        broadcast(abort);
-		resetToWaiting();
+        broadcast(txn, abort);
+		finish(txn);
     }
 
-    private void checkForEnoughUncertainStates() {
-    	final Collection<PeerReference> upSet = ownerNode.getUpSet();
-    	if ((uncertainStates + precommits) >= upSet.size()) {
-    		if (precommits == 0) {
-        		abortCurrentTransaction();
+    private void checkForEnoughUncertainStates(Transaction txn) {
+    	final PeerSet upSet = ownerNode.getUpSet();
+    	if ((txn.uncertainStates + txn.precommits) >= upSet.size()) {
+    		if (txn.precommits == 0) {
+        		abort(txn);
     		}
     		else {
-    			precommitCurrentAction();
+    			precommit(txn);
 
                 // shallow copy upset into peer set
-                setPeerSet(upSet.stream().map(d->d).collect(Collectors.toList()));
+                txn.peerSet = upSet.copy();
     		}
     	}
     }
 
-    private void checkForEnoughYesVotes() {
-    	final Collection<PeerReference> peerSet = getPeerSet();
-    	if (yesVotes >= peerSet.size()) {
-    		precommitCurrentAction();
+    private void checkForEnoughYesVotes(Transaction txn) {
+    	if (txn.yesVotes >= txn.peerSet.size()) {
+    		precommit(txn);
     	}
     }
 
-    private void checkForEnoughAcks() {
-    	final Collection<PeerReference> peerSet = getPeerSet();
-		if (acks >= peerSet.size()) {
-			commitCurrentAction();
+    private void checkForEnoughAcks(Transaction txn) {
+		if (txn.acks >= txn.peerSet.size()) {
+			commit(txn);
 		}
     }
 
@@ -379,17 +560,23 @@ public class CoordinatorStateMachine extends StateMachine {
         return limit;
     }
 
-    private void precommitCurrentAction() {
-        PrecommitRequest precommit = new PrecommitRequest(ongoingTransactionID);
-        broadcast(precommit);
-        txnConnections.forEach(conn -> ownerNode.resetTimersFor(conn.getReceiverID()));
-		state = CoordinatorState.WaitingForAcks;
+    private void precommit(Transaction txn) {
+        PrecommitRequest precommit = new PrecommitRequest(txn.id);
+        broadcast(txn, precommit);
+        if (!inFlight.containsKey(txn.id)) {
+            return;     // a peer's connection broke and the transaction was aborted
+        }
+        for (Connection conn : txn.txnConnections) {
+            txn.awaiting.add(conn.getReceiverID());
+            ownerNode.resetTimersFor(conn.getReceiverID());
+        }
+		txn.state = CoordinatorState.WaitingForAcks;
     }
 
-    private void broadcast(Message message) {
+    private void broadcast(Transaction txn, Message message) {
         int limit = partialBroadcastCount(message.getCommand());
         int i = 0;
-        for (Connection connection : txnConnections) {
+        for (Connection connection : new ArrayList<>(txn.txnConnections)) {
             if (i++ >= limit) {
                 ownerNode.selfDestruct();
             }
@@ -398,10 +585,7 @@ public class CoordinatorStateMachine extends StateMachine {
             }
             catch (IOException e) {
                 ownerNode.cancelTimersFor(connection.getReceiverID());
-                onTimeout(getPeerSet().stream()
-                                      .filter(p -> p.getNodeID() == connection.getReceiverID())
-                                      .findFirst()
-                                      .get());
+                onTimeout(connection.getReceiverID());
                 ownerNode.getPeerConns().remove(connection);
             }
         }
@@ -413,12 +597,12 @@ public class CoordinatorStateMachine extends StateMachine {
         }
     }
 
-    private void commitCurrentAction() {
-		CommitRequest commit = new CommitRequest(ongoingTransactionID);
-		ownerNode.logMessage(commit);
-        broadcast(commit);
+    private void commit(Transaction txn) {
+		CommitRequest commit = new CommitRequest(txn.id);
+		ownerNode.logMessage(commit).join();
+        broadcast(txn, commit);
         ownerNode.sendTxnMgrMsg(commit);
-        ownerNode.applyActionToVolatileStorage(action);
-        resetToWaiting();
+        ownerNode.applyActionToVolatileStorage(txn.action);
+        finish(txn);
     }
 }
@@ -1,80 +1,113 @@
 package node;
 
+import messages.Checkpoint;
 import messages.Message;
 import messages.PeerTimeout;
 import messages.vote_req.VoteRequest;
 import node.base.Node;
 
-import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 /**
- * Updates node's playlist, currentRequest, and upset to match its log.
+ * Updates node's playlist, uncommitted requests, and upset to match its log.
  * Does not `receive` any Messages from any Connections.
+ *
+ * Transactions may overlap in the log (a coordinator can run several at once), so
+ * each vote request is matched to its outcome by transaction ID.
  */
 public class LogRecoveryStateMachine {
 
-	private VoteRequest currentRequest;
-	private Collection<PeerReference> lastUpSet;
+	/* by transaction ID, in the order they were logged */
+	private final Map<Integer, VoteRequest> undecided = new LinkedHashMap<>();
+	private final Set<Integer> votedYes = new HashSet<>();
+	private PeerSet lastUpSet;
 	private Node node;
-	private boolean votedYes;
 
 	public LogRecoveryStateMachine(Node node) {
 		this.node = node;
-		for (Message message : node.getDtLog().getLoggedMessages()) {
-            handleLoggedMessage(message);
+		for (Iterator<Message> log = node.getDtLog().readLog(); log.hasNext(); ) {
+            handleLoggedMessage(log.next());
 		}
 	}
 
+	/**
+	 * @return the oldest request with no outcome in the log
+	 */
 	public VoteRequest getUncommittedRequest() {
-		return currentRequest;
+		return undecided.isEmpty() ? null : undecided.values().iterator().next();
 	}
 
-	public Collection<PeerReference> getLastUpSet() {
+	/**
+	 * @return the requests with no outcome in the log that this node voted YES on, oldest first
+	 */
+	public List<VoteRequest> getUncommittedYesVotes() {
+		return undecided.values().stream()
+		                .filter(request -> votedYes.contains(request.getTransactionID()))
+		                .collect(Collectors.toList());
+	}
+
+	public PeerSet getLastUpSet() {
 		return lastUpSet;
 	}
 
 	public boolean didVoteYesOnRequest() {
-		return votedYes;
+		VoteRequest oldest = getUncommittedRequest();
+		return oldest != null && votedYes.contains(oldest.getTransactionID());
 	}
 
 	private void handleLoggedMessage(Message message) {
+		final int txnID = message.getTransactionID();
 		switch (message.getCommand()) {
 		case ADD:
 		case DELETE:
 		case UPDATE:
-			if (currentRequest == null) {
-				currentRequest = (VoteRequest)message;
+		case BATCH:
+			if (!undecided.containsKey(txnID)) {
+				undecided.put(txnID, (VoteRequest)message);
 				lastUpSet = ((VoteRequest)message).getCloneOfPeerSet();
-				votedYes = false;
 			}
 			else
-				throw new RuntimeException("Shouldn't have seen a vote req without committing previous one.");
+				throw new RuntimeException("Shouldn't have seen a second vote req for txn "+txnID+" without deciding the first.");
 			break;
 		case ABORT:
-			if (currentRequest != null) {
-				currentRequest = null;
+			if (undecided.remove(txnID) != null) {
+				votedYes.remove(txnID);
 			}
 			else
 				throw new RuntimeException("Shouldn't have seen an abort without starting a vote req.");
 			break;
 		case COMMIT:
-			if (currentRequest != null) {
-                System.out.println(node.getMyNodeID()+": recovered "+currentRequest.getCommand());
-                node.applyActionToVolatileStorage(currentRequest);
-				currentRequest = null;
+			VoteRequest committed = undecided.remove(txnID);
+			if (committed != null) {
+                System.out.println(node.getMyNodeID()+": recovered "+committed.getCommand());
+                node.applyActionToVolatileStorage(committed);
+				votedYes.remove(txnID);
 			}
 			else
 				throw new RuntimeException("Shouldn't have seen a commit without starting a vote req.");
 			break;
+		case CHECKPOINT:
+			if (undecided.isEmpty()) {
+				node.restorePlaylist(((Checkpoint)message).getPlaylist());
+			}
+			else
+				throw new RuntimeException("Shouldn't have seen a checkpoint in the middle of a vote req.");
+			break;
 		case YES:
-			if (currentRequest != null) {
-				votedYes = true;
+			if (undecided.containsKey(txnID)) {
+				votedYes.add(txnID);
 			}
 			break;
 		case TIMEOUT:
-			if (currentRequest != null) {
+			if (!undecided.isEmpty()) {
 				PeerTimeout timeout = (PeerTimeout)message;
-				lastUpSet.removeIf(ref -> ref.getNodeID() == timeout.getPeerId());
+				lastUpSet.remove(timeout.getPeerId());
 			}
 			break;
 		case ACK:
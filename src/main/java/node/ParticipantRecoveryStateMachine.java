@@ -12,13 +12,15 @@ import node.base.Node;
 import node.base.StateMachine;
 import system.network.Connection;
 import util.Common;
+import util.HashedWheelTimer;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.Map;
 
 public class ParticipantRecoveryStateMachine extends StateMachine {
 	private enum ParticipantRecoveryState {
@@ -28,41 +30,74 @@ public class ParticipantRecoveryStateMachine extends StateMachine {
 	};
 
 	VoteRequest uncommitted;
+	/* the undecided transactions to recover once `uncommitted` is settled, oldest first */
+	List<VoteRequest> later;
+	PeerSet lastUpSet;
 	List<PeerReference> sortedPeers;
 	int currentPeerIndex;
 	Connection currentPeerConnection;
 	ParticipantRecoveryState state;
-	private Set<Integer> recoveredProcesses;
-	private Set<Integer> upSetIntersection;
-	private Set<Integer> originalUpSet;
+	/* by node ID only; their ports don't matter here */
+	private PeerSet recoveredProcesses;
+	private PeerSet upSetIntersection;
+	private PeerSet originalUpSet;
 
-	public Set<Integer> getRecoveredProcesses() {
-		return recoveredProcesses;
+	/* whether every peer is asked at once, rather than one after another */
+	private final boolean parallel = Common.RECOVERY_PARALLEL;
+	/* in parallel mode, the peers yet to answer this round */
+	private PeerSet awaitingReplies = new PeerSet();
+	private long backoffMillis = Common.RECOVERY_BACKOFF_MILLISECONDS;
+	/* the next round, while waiting out the backoff before it */
+	private HashedWheelTimer.Timeout nextRound = null;
+	/* the transaction manager is asked once, before any peer; rounds after the first go straight to the peers */
+	private boolean askedTxnMgr = false;
+	/* while the transaction manager has yet to answer, or time out */
+	private boolean awaitingTxnMgr = false;
+	/* by peer ID, the DecisionRequests a peer has yet to answer, so answers to earlier rounds can be told apart */
+	private final Map<Integer, Unanswered> unanswered = new HashMap<>();
+
+	/**
+	 * A peer answers its DecisionRequests in the order they were sent, so while it owes
+	 * more than one, the answer that comes is to an older one. Requests sent over a
+	 * connection that's since been replaced (eg. because the peer restarted) won't be
+	 * answered, and stop counting.
+	 */
+	private static class Unanswered {
+		Connection connection;
+		int requests;
+	}
+
+	public Collection<Integer> getRecoveredProcesses() {
+		return recoveredProcesses.ids();
 	}
 
-	public Set<Integer> getUpSetIntersection() {
-		return upSetIntersection;
+	public Collection<Integer> getUpSetIntersection() {
+		return upSetIntersection.ids();
 	}
 
 	public ParticipantRecoveryStateMachine(Node ownerNode, VoteRequest uncommitted, Collection<PeerReference> lastUpSet) {
+		this(ownerNode, Collections.singletonList(uncommitted), PeerSet.of(lastUpSet));
+	}
+
+	/**
+	 * Recovers the transactions one at a time, oldest first. If recovering one leads to
+	 * the termination protocol, the rest go through it along with it.
+	 */
+	public ParticipantRecoveryStateMachine(Node ownerNode, List<VoteRequest> uncommitted, PeerSet lastUpSet) {
 		super(ownerNode);
-		this.uncommitted = uncommitted;
+		this.uncommitted = uncommitted.get(0);
+		this.later = new ArrayList<>(uncommitted.subList(1, uncommitted.size()));
+		this.lastUpSet = lastUpSet;
 
-		Collection<PeerReference> peerRefsInRequest = uncommitted.getPeerSet();
-		sortedPeers = peerRefsInRequest.stream()
-				.filter(peer -> peer.getNodeID() != ownerNode.getMyNodeID())
-				.sorted((a, b) -> new Integer(a.getNodeID()).compareTo(b.getNodeID()))
-				.collect(Collectors.toList());
+		/* a PeerSet iterates in ID order */
+		sortedPeers = new ArrayList<>(this.uncommitted.getPeerSet().without(ownerNode.getMyNodeID()));
 
-		originalUpSet = new HashSet<Integer>();
-        for (PeerReference peerRef : lastUpSet) {
-			originalUpSet.add(peerRef.getNodeID());
-		}
+		originalUpSet = lastUpSet.copy();
 
         StringBuilder sb1 = new StringBuilder();
         sortedPeers.forEach(p -> sb1.append(p.getNodeID()+" "));
         StringBuilder sb2 = new StringBuilder();
-        originalUpSet.forEach(p -> sb2.append(p+" "));
+        originalUpSet.forEach(p -> sb2.append(p.getNodeID()+" "));
         ownerNode.log("Starting with peers "+sb1.toString()+" and upset "+sb2.toString());
 
 		resetToNoInformation();
@@ -71,41 +106,61 @@ public class ParticipantRecoveryStateMachine extends StateMachine {
 	@Override
     public synchronized boolean receiveMessage(Connection overConnection, Message message) {
         int receiverID = overConnection.getReceiverID();
-        ownerNode.cancelTimersFor(overConnection.getReceiverID());
+        System.out.println("ParticipantInRec "+ownerNode.getMyNodeID()+"" +" received a "+
+                           message.getCommand()+" from "+overConnection.getReceiverID());
+        if (receiverID == Common.TXN_MGR_ID && (message.getCommand() == Command.TIMEOUT ||
+            message.getCommand() == Command.UNCERTAIN && message.getTransactionID() == uncommitted.getTransactionID())) {
+            if (awaitingTxnMgr) {
+                // the transaction manager doesn't remember the outcome, or didn't answer in time, so ask the peers
+                stopWaitingForTxnMgr();
+                askPeers();
+            }
+            return true;
+        }
+
+        if (isAnswerToDecisionRequest(message.getCommand()) && !answersCurrentRequest(receiverID, message)) {
+            // a late answer to a request this no longer waits on, or about a transaction already recovered;
+            // the peer's timer still runs for the current one
+            return true;
+        }
+
+        if (receiverID != Common.TXN_MGR_ID) {
+            ownerNode.cancelTimersFor(receiverID);
+        }
 
         if (!message.getCommand().equals(Command.TIMEOUT) && receiverID > 0) {
-            recoveredProcesses.add(receiverID);
+            recoveredProcesses.add(receiverID, 0);
         }
         else {
             recoveredProcesses.remove(receiverID);
         }
 
-        System.out.println("ParticipantInRec "+ownerNode.getMyNodeID()+"" +" received a "+
-                           message.getCommand()+" from "+overConnection.getReceiverID());
         switch (message.getCommand()) {
 
             case COMMIT:
-                ownerNode.logMessage(message);
+                ownerNode.logMessage(message).join();
                 ownerNode.applyActionToVolatileStorage(uncommitted);
-                ownerNode.becomeParticipant();
+                stopWaitingForReplies();
+                recoverNextOrParticipate();
                 break;
 
             case ABORT:
                 ownerNode.logMessage(message);
-                ownerNode.becomeParticipant();
+                stopWaitingForReplies();
+                recoverNextOrParticipate();
                 break;
 
             case PRE_COMMIT:
-                advanceToNextProcessOrRewind();
+                nextReplyOrRewind(receiverID);
                 break;
 
             case UNCERTAIN:
                 state = ParticipantRecoveryState.SomeProcessesUncertain;
-                advanceToNextProcessOrRewind();
+                nextReplyOrRewind(receiverID);
                 break;
 
             case TIMEOUT:
-                advanceToNextProcessOrRewind();
+                nextReplyOrRewind(receiverID);
                 break;
 
             case IN_RECOVERY:
@@ -115,41 +170,31 @@ public class ParticipantRecoveryStateMachine extends StateMachine {
                     state = ParticipantRecoveryState.SomeProcessesInRecovery;
                     InRecoveryResponse inRecovery = (InRecoveryResponse) message;
                     // add to recovered processes
-                    this.recoveredProcesses.add(sortedPeers.get(currentPeerIndex).getNodeID());
+                    if (!parallel) {
+                        this.recoveredProcesses.add(sortedPeers.get(currentPeerIndex).getNodeID(), 0);
+                    }
                     // compute new UP set intersection
-                    upSetIntersection.retainAll(inRecovery.getLastUpSet());
+                    upSetIntersection.retainAll(PeerSet.ofIDs(inRecovery.getLastUpSet()));
 
-                    if (++currentPeerIndex < sortedPeers.size()) {
+                    if (parallel) {
+                        nextReplyOrRewind(receiverID);
+                    }
+                    else if (++currentPeerIndex < sortedPeers.size()) {
                         sendDecisionRequestToCurrentPeer();
                     }
                     else {
                         // all peers are in recovery, so see if we can elect a leader.
-                        boolean ready = true;
-                        int max = upSetIntersection.stream().max(Integer::max).get();
-                        for (int i = 1; i <= max; ++i) {
-                            if (!recoveredProcesses.contains(i)) {
-                                ready = false;
-                                break;
-                            }
-                        }
-                        if (ready) {
-                            updateNodeUpSet();
-                            ownerNode.electNewLeader(uncommitted, false);
-                        }
-                        else {
-                            // the last process to fail hasn't recovered yet, so rewind
-                            advanceToNextProcessOrRewind();
-                        }
+                        electIfLastToFailHasRecovered();
                     }
                 }
                 else if (state == ParticipantRecoveryState.SomeProcessesUncertain) {
                     // recovering process doesn't matter; keep walking the list
-                    advanceToNextProcessOrRewind();
+                    nextReplyOrRewind(receiverID);
                 }
                 break;
             case DECISION_REQUEST:
                 try {
-                    ownerNode.send(overConnection, new InRecoveryResponse(uncommitted.getTransactionID(), originalUpSet));
+                    ownerNode.send(overConnection, new InRecoveryResponse(uncommitted.getTransactionID(), originalUpSet.ids()));
                 }
                 catch (IOException e) {
                     ownerNode.getPeerConns().remove(overConnection);
@@ -158,7 +203,8 @@ public class ParticipantRecoveryStateMachine extends StateMachine {
             case STATE_REQUEST:
                 try {
                     ownerNode.send(overConnection, new UncertainResponse(uncommitted.getTransactionID()));
-                    ownerNode.becomeParticipantInTerminationProtocol(uncommitted, false);
+                    stopWaitingForReplies();
+                    ownerNode.becomeParticipantInTerminationProtocol(allUncommitted(), Collections.emptySet());
                     ownerNode.resetTimersFor(overConnection.getReceiverID());
                 }
                 catch (IOException e) {
@@ -167,8 +213,9 @@ public class ParticipantRecoveryStateMachine extends StateMachine {
 
                 break;
             case UR_ELECTED:
+                stopWaitingForReplies();
                 updateNodeUpSet();
-                ownerNode.becomeCoordinatorInRecovery(uncommitted, false);
+                ownerNode.becomeCoordinatorInRecovery(allUncommitted(), Collections.emptySet());
                 break;
                 /* Fail Cases */
             case PARTIAL_BROADCAST:
@@ -187,21 +234,193 @@ public class ParticipantRecoveryStateMachine extends StateMachine {
         return true;
     }
 
+    private static boolean isAnswerToDecisionRequest(Command command) {
+        return command.isDecision() || command == Command.PRE_COMMIT || command == Command.UNCERTAIN ||
+               command == Command.TIMEOUT || command == Command.IN_RECOVERY;
+    }
+
+    /**
+     * @return whether the message answers the DecisionRequest this round is waiting on
+     *         from the peer, rather than one from an earlier round or another transaction.
+     *         A decision about this transaction is taken whichever round asked for it.
+     */
+    private boolean answersCurrentRequest(int peerID, Message message) {
+        if (message.getCommand() == Command.TIMEOUT) {
+            return isWaitingOn(peerID);
+        }
+        /* counted off whether or not it's wanted */
+        boolean latest = isAnswerToLatestRequest(peerID);
+        if (message.getTransactionID() != uncommitted.getTransactionID()) {
+            return false;
+        }
+        return message.getCommand().isDecision() || latest && isWaitingOn(peerID);
+    }
+
+    private boolean isWaitingOn(int peerID) {
+        if (nextRound != null) {
+            return false;
+        }
+        if (parallel) {
+            return awaitingReplies.contains(peerID);
+        }
+        return currentPeerIndex < sortedPeers.size() && sortedPeers.get(currentPeerIndex).getNodeID() == peerID;
+    }
+
+    private void sentDecisionRequest(int peerID, Connection connection) {
+        Unanswered owed = unanswered.computeIfAbsent(peerID, id -> new Unanswered());
+        if (owed.connection != connection) {
+            owed.connection = connection;
+            owed.requests = 0;
+        }
+        owed.requests++;
+    }
+
+    private boolean isAnswerToLatestRequest(int peerID) {
+        Unanswered owed = unanswered.get(peerID);
+        if (owed == null || owed.requests == 0) {
+            return true;
+        }
+        return --owed.requests == 0;
+    }
+
+    private List<VoteRequest> allUncommitted() {
+        List<VoteRequest> all = new ArrayList<>();
+        all.add(uncommitted);
+        all.addAll(later);
+        return all;
+    }
+
+    private void recoverNextOrParticipate() {
+        if (later.isEmpty()) {
+            ownerNode.becomeParticipant();
+        }
+        else {
+            ownerNode.becomeParticipantInRecovery(later, lastUpSet);
+            ((ParticipantRecoveryStateMachine) ownerNode.getStateMachine()).requestDecision();
+        }
+    }
+
     private void updateNodeUpSet() {
-        Collection<PeerReference> nodeUpSet = uncommitted.getPeerSet().stream()
-                                                         .filter(pr -> recoveredProcesses.contains(pr.getNodeID()))
-                                                         .collect(Collectors.toList());
+        PeerSet nodeUpSet = uncommitted.getCloneOfPeerSet();
+        nodeUpSet.retainAll(recoveredProcesses);
         ownerNode.setUpSet(nodeUpSet);
     }
 
     private void resetToNoInformation() {
         state = ParticipantRecoveryState.NoInformation;
         currentPeerIndex = 0;
-        recoveredProcesses = new HashSet<Integer>();
-        recoveredProcesses.add(ownerNode.getMyNodeID());
-        upSetIntersection = new HashSet<Integer>();
-        for (Integer peerId : originalUpSet) {
-            upSetIntersection.add(peerId);
+        recoveredProcesses = new PeerSet();
+        recoveredProcesses.add(ownerNode.getMyNodeID(), 0);
+        upSetIntersection = originalUpSet.copy();
+    }
+
+    private void electIfLastToFailHasRecovered() {
+        boolean ready = true;
+        int max = upSetIntersection.highestID();
+        for (int i = 1; i <= max; ++i) {
+            if (!recoveredProcesses.contains(i)) {
+                ready = false;
+                break;
+            }
+        }
+        if (ready) {
+            updateNodeUpSet();
+            ownerNode.electNewLeader(allUncommitted(), Collections.emptySet());
+        }
+        else {
+            // the last process to fail hasn't recovered yet, so rewind
+            rewind();
+        }
+    }
+
+    /**
+     * Asks the transaction manager for the decision first, since it remembers recent
+     * outcomes. Once it can't say, or hasn't answered within the timeout, asks the peers,
+     * one at a time or all at once depending on `Common.RECOVERY_PARALLEL`.
+     */
+    public synchronized void requestDecision() {
+        if (!askedTxnMgr && ownerNode.isConnectedToTxnMgr()) {
+            askedTxnMgr = true;
+            awaitingTxnMgr = true;
+            System.out.println("Node "+ownerNode.getMyNodeID()+": sending DEC_REC to txn mgr");
+            ownerNode.sendTxnMgrMsg(new DecisionRequest(uncommitted.getTransactionID()));
+            ownerNode.resetTimersFor(Common.TXN_MGR_ID);
+        }
+        else {
+            askPeers();
+        }
+    }
+
+    private void askPeers() {
+        if (parallel) {
+            sendDecisionRequestsToAllPeers();
+        }
+        else {
+            sendDecisionRequestToCurrentPeer();
+        }
+    }
+
+    /**
+     * A round ends once every peer has replied or timed out, unless one of them knew the
+     * decision first.
+     */
+    private void sendDecisionRequestsToAllPeers() {
+        awaitingReplies = new PeerSet(sortedPeers);
+        for (PeerReference peer : sortedPeers) {
+            final int peerID = peer.getNodeID();
+            try {
+                Connection peerConnection = ownerNode.getOrConnectToPeer(peer);
+                ownerNode.send(peerConnection, new DecisionRequest(uncommitted.getTransactionID()));
+                sentDecisionRequest(peerID, peerConnection);
+                ownerNode.resetTimersFor(peerID);
+            }
+            catch (IOException e) {
+                System.err.println("Node "+ownerNode.getMyNodeID()+": " +
+                                   "could not send DEC_REC to "+peerID);
+                ownerNode.sendTxnMgrMsg(new PeerTimeout(peerID));
+                recoveredProcesses.remove(peerID);
+                awaitingReplies.remove(peerID);
+            }
+        }
+        if (awaitingReplies.isEmpty()) {
+            endOfRound();
+        }
+    }
+
+    private void nextReplyOrRewind(int peerID) {
+        if (!parallel) {
+            advanceToNextProcessOrRewind();
+        }
+        else if (awaitingReplies.remove(peerID) && awaitingReplies.isEmpty()) {
+            endOfRound();
+        }
+    }
+
+    private void endOfRound() {
+        if (state == ParticipantRecoveryState.SomeProcessesInRecovery) {
+            electIfLastToFailHasRecovered();
+        }
+        else {
+            rewind();
+        }
+    }
+
+    private void stopWaitingForTxnMgr() {
+        if (awaitingTxnMgr) {
+            awaitingTxnMgr = false;
+            ownerNode.cancelTimersFor(Common.TXN_MGR_ID);
+        }
+    }
+
+    private void stopWaitingForReplies() {
+        stopWaitingForTxnMgr();
+        for (int id = awaitingReplies.lowestID(); id >= 0; id = awaitingReplies.nextID(id+1)) {
+            ownerNode.cancelTimersFor(id);
+        }
+        awaitingReplies.clear();
+        if (nextRound != null) {
+            nextRound.cancel();
+            nextRound = null;
         }
     }
 
@@ -214,6 +433,7 @@ public class ParticipantRecoveryStateMachine extends StateMachine {
             Connection currentPeerConnection = ownerNode.getOrConnectToPeer(current);
             ownerNode.log("obtained conn to "+currentNodeID);
             ownerNode.send(currentPeerConnection, new DecisionRequest(uncommitted.getTransactionID()));
+            sentDecisionRequest(currentNodeID, currentPeerConnection);
             ownerNode.resetTimersFor(currentNodeID);
         }
         catch (IOException e) {
@@ -229,20 +449,27 @@ public class ParticipantRecoveryStateMachine extends StateMachine {
 			sendDecisionRequestToCurrentPeer();
 		}
 		else {
-			// wait and try again
-			try {
-				Thread.sleep(1000);
-			} catch (InterruptedException e) {
-                System.err.println("Node "+ownerNode.getMyNodeID()+"'s wheel-clock was interrupted by node timer");
-                try {
-                    Thread.sleep(300);
-                }
-                catch (InterruptedException e1) {
-                    e1.printStackTrace();
-                }
-            }
-			resetToNoInformation();
-			sendDecisionRequestToCurrentPeer();
+			rewind();
 		}
 	}
+
+	/**
+	 * Waits, longer each time up to `Common.RECOVERY_MAX_BACKOFF_MILLISECONDS`, then asks
+	 * all over again. The wait is on the node's timer, so in the meantime this still
+	 * answers peers' DECISION_REQUESTs and STATE_REQUESTs.
+	 */
+	private void rewind() {
+		long delay = backoffMillis;
+		backoffMillis = Math.min(backoffMillis*2, Math.max(Common.RECOVERY_MAX_BACKOFF_MILLISECONDS, Common.RECOVERY_BACKOFF_MILLISECONDS));
+		nextRound = ownerNode.schedule(this::startNextRound, delay);
+	}
+
+	private synchronized void startNextRound() {
+		nextRound = null;
+		if (ownerNode.getStateMachine() != this) {
+			return;     // recovery ended while this waited
+		}
+		resetToNoInformation();
+		askPeers();
+	}
 }
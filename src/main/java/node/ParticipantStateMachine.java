@@ -16,33 +16,64 @@ import messages.vote_req.VoteRequest;
 import node.base.Node;
 import node.base.StateMachine;
 import system.network.Connection;
-import util.Common;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 import static util.Common.NO_ONGOING_TRANSACTION;
 
 /**
  * Ethan Petuchowski 2/27/15
+ *
+ * Keeps the state of every transaction it has voted YES on until that transaction is
+ * decided, since a coordinator may have several in flight. The "ongoing" transaction
+ * the getters and setters describe is the newest of them.
  */
 public class ParticipantStateMachine extends StateMachine {
 
-    /* ONGOING TRANSACTION ATTRIBUTES */
-    private int ongoingTransactionID = NO_ONGOING_TRANSACTION;
-    private VoteRequest action;  // the update being performed
-    private boolean precommitted = false;
+    /**
+     * what the participant knows about one transaction it voted YES on
+     */
+    private static class Transaction {
+        int id = NO_ONGOING_TRANSACTION;
+        VoteRequest action;  // the update being performed
+        boolean precommitted = false;
+        PeerSet peerSet;
+
+        int id() {
+            return id == NO_ONGOING_TRANSACTION && action != null ? action.getTransactionID() : id;
+        }
+    }
+
+    /* ONGOING TRANSACTIONS, oldest first */
+    private final List<Transaction> inFlight = new ArrayList<>();
     private Connection currentConnection = null;
     private Connection coordinatorConnection = null;
     private int coordinatorId;
 
     public static ParticipantStateMachine startInTerminationProtocol(Node ownerNode, VoteRequest action, boolean precommit) {
+        return startInTerminationProtocol(
+                ownerNode,
+                Collections.singletonList(action),
+                precommit ? Collections.singleton(action.getTransactionID()) : Collections.emptySet());
+    }
+
+    /**
+     * @param precommitted IDs of the `actions` this node had received a PRE_COMMIT for
+     */
+    public static ParticipantStateMachine startInTerminationProtocol(Node ownerNode, List<VoteRequest> actions, Set<Integer> precommitted) {
         ParticipantStateMachine machine = new ParticipantStateMachine(ownerNode);
-    	machine.action = action;
-    	machine.ongoingTransactionID = action.getTransactionID();
-    	machine.precommitted = precommit;
+        for (VoteRequest action : actions) {
+            Transaction txn = new Transaction();
+            txn.action = action;
+            txn.id = action.getTransactionID();
+            txn.precommitted = precommitted.contains(txn.id);
+            machine.inFlight.add(txn);
+        }
     	return machine;
     }
 
@@ -56,19 +87,17 @@ public class ParticipantStateMachine extends StateMachine {
 
             System.out.println("Participant "+ownerNode.getMyNodeID()+" received a "+msg.getCommand()+" from "+currentConnection.getReceiverID());
 
-            if (currentConnection.getReceiverID() == coordinatorId) {
+            final boolean fromCoordinator = currentConnection.getReceiverID() == coordinatorId;
+            if (fromCoordinator) {
                 switch (msg.getCommand()) {
                     case ADD:
                     case UPDATE:
                     case DELETE:
+                    case BATCH:
                     case PRE_COMMIT:
                     case STATE_REQUEST:
                         ownerNode.resetTimersFor(currentConnection.getReceiverID());
                         break;
-                    case ABORT:
-                    case COMMIT:
-                        ownerNode.cancelAllTimers();
-                        break;
                 }
             }
 
@@ -78,6 +107,7 @@ public class ParticipantStateMachine extends StateMachine {
                 case ADD:
                 case UPDATE:
                 case DELETE:
+                case BATCH:
                     VoteRequest vote = (VoteRequest)msg;
                      receiveVoteRequest(vote, ownerNode.getVoteValue(vote));
                      break;
@@ -109,12 +139,13 @@ public class ParticipantStateMachine extends StateMachine {
 
                 case DECISION_REQUEST:
                 	Message decision = ownerNode.getDecisionFor(msg.getTransactionID());
+                    Transaction txn = find(msg.getTransactionID());
                     try {
                         if (decision != null) {
                             overConnection.sendMessage(decision);
                         }
-                        else if (msg.getTransactionID() == ongoingTransactionID && precommitted) {
-                            overConnection.sendMessage(new PrecommitRequest(ongoingTransactionID));
+                        else if (txn != null && txn.precommitted) {
+                            overConnection.sendMessage(new PrecommitRequest(msg.getTransactionID()));
                         }
                         else {
                             overConnection.sendMessage(new UncertainResponse(msg.getTransactionID()));
@@ -126,18 +157,9 @@ public class ParticipantStateMachine extends StateMachine {
                 	break;
 
                 case STATE_REQUEST:
-                    ownerNode.getUpSet().removeIf(n -> n.getNodeID() < overConnection.getReceiverID());
+                    ownerNode.getUpSet().removeBelow(overConnection.getReceiverID());
                     coordinatorId = overConnection.getReceiverID();
-                    Message m, lastLogged = lastLoggedMessage();
-                	if (lastLogged == null) {
-                		m = new AbortRequest(Common.NO_ONGOING_TRANSACTION);
-                	}
-                	else if (lastLogged instanceof AbortRequest || lastLogged instanceof CommitRequest) {
-                		m = lastLogged;
-                	}
-                	else {
-                		m = precommitted ? new PrecommitRequest(ongoingTransactionID) : new UncertainResponse(action.getTransactionID());
-                	}
+                    Message m = stateOf(msg.getTransactionID());
                     try {
                         overConnection.sendMessage(m);
                     }
@@ -149,6 +171,16 @@ public class ParticipantStateMachine extends StateMachine {
                 default:
                     ownerNode.log("Not a valid message: "+msg.getCommand());
             }
+
+            /* the coordinator is still needed for whatever else is in flight */
+            if (fromCoordinator && msg.getCommand().isDecision()) {
+                if (inFlight.isEmpty()) {
+                    ownerNode.cancelAllTimers();
+                }
+                else {
+                    ownerNode.resetTimersFor(coordinatorId);
+                }
+            }
         }
 
         return true;
@@ -160,14 +192,76 @@ public class ParticipantStateMachine extends StateMachine {
         ownerNode.getPeerConns().remove(conn);
     }
 
-    Message lastLoggedMessage() {
-    	List<Message> loggedMessages = ownerNode.getDtLog().getLoggedMessages().stream().collect(Collectors.toList());
-		int s = loggedMessages.size();
-		return s > 0 ? loggedMessages.get(s - 1) : null;
-	}
+    /**
+     * @return what a new coordinator running the termination protocol should hear about the transaction
+     */
+    private Message stateOf(int transactionID) {
+        Message decision = ownerNode.getDecisionFor(transactionID);
+        if (decision != null) {
+            return decision;
+        }
+        Transaction txn = find(transactionID);
+        if (txn == null && ownerNode.mayHaveForgottenDecisionFor(transactionID)) {
+            /* it may have committed, but the log no longer says */
+            return new UncertainResponse(transactionID);
+        }
+        if (txn == null) {
+            /* never voted on it, so it can't have committed */
+            return new AbortRequest(transactionID);
+        }
+        return txn.precommitted ? new PrecommitRequest(transactionID) : new UncertainResponse(transactionID);
+    }
+
+    private Transaction find(int transactionID) {
+        for (Transaction txn : inFlight) {
+            if (txn.id() == transactionID) {
+                return txn;
+            }
+        }
+        return null;
+    }
+
+    private Transaction newest() {
+        return inFlight.isEmpty() ? null : inFlight.get(inFlight.size()-1);
+    }
+
+    private Transaction newestOrCreate() {
+        if (inFlight.isEmpty()) {
+            inFlight.add(new Transaction());
+        }
+        return newest();
+    }
+
+    private List<VoteRequest> undecidedActions() {
+        return inFlight.stream()
+                       .filter(txn -> txn.action != null)
+                       .map(txn -> txn.action)
+                       .collect(Collectors.toList());
+    }
+
+    private Set<Integer> precommittedIDs() {
+        return inFlight.stream()
+                       .filter(txn -> txn.precommitted)
+                       .map(Transaction::id)
+                       .collect(Collectors.toSet());
+    }
+
+    /**
+     * forgets the decided transaction; once none are left, neither is a peer set
+     */
+    private void decided(int transactionID) {
+        inFlight.remove(find(transactionID));
+        if (inFlight.isEmpty()) {
+            setPeerSet(null);
+            ownerNode.setUpSet(null);
+        }
+        else {
+            setPeerSet(newest().peerSet);
+        }
+    }
 
     private void receiveUR_ELECTED(Message message) {
-        if (action == null) {
+        if (undecidedActions().isEmpty()) {
             /* decision was already reached */
             final Message decision = ownerNode.getDecisionFor(message.getTransactionID());
             try {
@@ -179,17 +273,24 @@ public class ParticipantStateMachine extends StateMachine {
             ownerNode.sendTxnMgrMsg(decision);
         }
         else {
-            ownerNode.getUpSet().removeIf(n -> n.getNodeID() < ownerNode.getMyNodeID());
-            ownerNode.becomeCoordinatorInRecovery(action, precommitted);
+            ownerNode.getUpSet().removeBelow(ownerNode.getMyNodeID());
+            ownerNode.becomeCoordinatorInRecovery(undecidedActions(), precommittedIDs());
         }
     }
 
+    /**
+     * A decision already logged isn't logged again, since several peers may send the same
+     * one, eg. in answer to a recovering node's DecisionRequests.
+     */
+    private boolean alreadyDecided(int transactionID) {
+        return ownerNode.getDecisionFor(transactionID) != null;
+    }
+
     private void receiveAbort(Message message) {
-        ownerNode.logMessage(message);
-        action = null;
-        setPeerSet(null);
-        ownerNode.setUpSet(null);
-        setOngoingTransactionID(NO_ONGOING_TRANSACTION);
+        if (!alreadyDecided(message.getTransactionID())) {
+            ownerNode.logMessage(message);
+        }
+        decided(message.getTransactionID());
     }
 
     private void receiveDubCoordinator(Message message) {
@@ -199,7 +300,7 @@ public class ParticipantStateMachine extends StateMachine {
     private void receiveVoteRequest(VoteRequest voteRequest, boolean voteValue) {
     	setCoordinatorID(currentConnection.getReceiverID());
         coordinatorConnection = currentConnection;
-        ownerNode.setUpSet(voteRequest.getPeerSet());
+        joinUpSet(voteRequest);
     	ownerNode.logMessage(voteRequest);
         if (voteValue) {
             respondYESToVoteRequest(voteRequest);
@@ -209,6 +310,21 @@ public class ParticipantStateMachine extends StateMachine {
         }
     }
 
+    /**
+     * The up set is the node's, shared by every transaction in flight, so a new vote only
+     * narrows it: a peer that failed during an older transaction stays out, or the
+     * termination protocol for that transaction could wait on it.
+     */
+    private void joinUpSet(VoteRequest voteRequest) {
+        boolean othersInFlight = inFlight.stream().anyMatch(txn -> txn.id() != voteRequest.getTransactionID());
+        if (othersInFlight && ownerNode.getUpSet() != null) {
+            ownerNode.getUpSet().retainAll(voteRequest.getPeerSet());
+        }
+        else {
+            ownerNode.setUpSet(voteRequest.getCloneOfPeerSet());
+        }
+    }
+
     private void receiveAddRequest(AddRequest addRequest) {
         receiveVoteRequest(addRequest, !ownerNode.hasSongTupleWithName(addRequest.getSongTuple()));
     }
@@ -225,9 +341,14 @@ public class ParticipantStateMachine extends StateMachine {
      * doesn't log anything (Lecture 3, Pg. 13), send ACK
      */
     private void receivePrecommit(PrecommitRequest precommitRequest) {
-        setPrecommitted(true);
+        Transaction txn = find(precommitRequest.getTransactionID());
+        if (txn == null) {
+            ownerNode.log("Ignoring PRE_COMMIT for unknown txn "+precommitRequest.getTransactionID());
+            return;
+        }
+        txn.precommitted = true;
         try {
-            ownerNode.send(currentConnection, new AckRequest(getOngoingTransactionID()));
+            ownerNode.send(currentConnection, new AckRequest(precommitRequest.getTransactionID()));
         }
         catch (IOException e) {
             forceTimeoutBcBrokenConn(currentConnection);
@@ -235,10 +356,16 @@ public class ParticipantStateMachine extends StateMachine {
     }
 
     private void receiveCommit(CommitRequest commitRequest) {
-        ownerNode.logMessage(commitRequest);
-        ownerNode.applyActionToVolatileStorage(action);
-        setOngoingTransactionID(NO_ONGOING_TRANSACTION);
-        action = null;
+        if (alreadyDecided(commitRequest.getTransactionID())) {
+            decided(commitRequest.getTransactionID());
+            return;
+        }
+        ownerNode.logMessage(commitRequest).join();
+        Transaction txn = find(commitRequest.getTransactionID());
+        if (txn != null && txn.action != null) {
+            ownerNode.applyActionToVolatileStorage(txn.action);
+        }
+        decided(commitRequest.getTransactionID());
     }
 
     public void respondNOToVoteRequest(Message message) {
@@ -252,13 +379,16 @@ public class ParticipantStateMachine extends StateMachine {
     }
 
     private void respondYESToVoteRequest(VoteRequest voteRequest) {
-        action = voteRequest;
-        setOngoingTransactionID(voteRequest.getTransactionID());
-        setPeerSet(voteRequest.getCloneOfPeerSet());
-        ownerNode.setUpSet(voteRequest.getCloneOfPeerSet());
+        inFlight.remove(find(voteRequest.getTransactionID()));
+        Transaction txn = new Transaction();
+        txn.id = voteRequest.getTransactionID();
+        txn.action = voteRequest;
+        txn.peerSet = voteRequest.getCloneOfPeerSet();
+        inFlight.add(txn);
+        setPeerSet(txn.peerSet);
         ownerNode.resetTimersFor(currentConnection.getReceiverID());
         final YesResponse response = new YesResponse(voteRequest);
-        ownerNode.logMessage(response);
+        ownerNode.logMessage(response).join();
         try {
             ownerNode.send(currentConnection, response);
         }
@@ -270,19 +400,31 @@ public class ParticipantStateMachine extends StateMachine {
     /* Getters and Setters */
 
     public int getOngoingTransactionID() {
-        return ongoingTransactionID;
+        return inFlight.isEmpty() ? NO_ONGOING_TRANSACTION : newest().id();
     }
 
+    /**
+     * @param ongoingTransactionID NO_ONGOING_TRANSACTION forgets the newest transaction
+     */
     public void setOngoingTransactionID(int ongoingTransactionID) {
-        this.ongoingTransactionID = ongoingTransactionID;
+        if (ongoingTransactionID == NO_ONGOING_TRANSACTION) {
+            inFlight.remove(newest());
+        }
+        else {
+            newestOrCreate().id = ongoingTransactionID;
+        }
+    }
+
+    public int getTransactionsInFlight() {
+        return inFlight.size();
     }
 
     public boolean isPrecommitted() {
-        return precommitted;
+        return !inFlight.isEmpty() && newest().precommitted;
     }
 
     public void setPrecommitted(boolean precommitted) {
-        this.precommitted = precommitted;
+        newestOrCreate().precommitted = precommitted;
     }
 
     public void setCoordinatorID(int coordinatorID) {
@@ -290,37 +432,32 @@ public class ParticipantStateMachine extends StateMachine {
     }
 
     public VoteRequest getAction() {
-        return action;
+        return inFlight.isEmpty() ? null : newest().action;
     }
 
     public void setAction(VoteRequest action) {
-        this.action = action;
+        newestOrCreate().action = action;
     }
 
     private void onTimeout(PeerTimeout timeout) {
         if (timeout.getPeerId() == coordinatorId) {
             ownerNode.sendTxnMgrMsg(timeout);
 
-            if (action != null) {
+            if (!undecidedActions().isEmpty()) {
                 ownerNode.logMessage(timeout);
                 removeFromUpset(timeout.getPeerId());
-                ownerNode.electNewLeader(action, precommitted);
+                ownerNode.electNewLeader(undecidedActions(), precommittedIDs());
             }
     	}
     }
 
     private PeerReference getNodeWithLowestIDInUpset() {
-        if (ownerNode.getUpSet().isEmpty()) return null;
-        PriorityQueue<PeerReference> peerReferences = new PriorityQueue<>(ownerNode.getUpSet());
-        return peerReferences.poll();
+        return ownerNode.getUpSet().lowest();
     }
 
     private void removeFromUpset(int id) {
         if (ownerNode.getUpSet() == null) return;
-        ownerNode.setUpSet(ownerNode.getUpSet()
-                          .stream()
-                          .filter(c -> c.getNodeID() != id)
-                          .collect(Collectors.toList()));
+        ownerNode.getUpSet().remove(id);
     }
 
     public void setCoordinatorConnection(Connection coordinatorConnection) {
@@ -0,0 +1,244 @@
+package node;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A set of peers kept as a bitset of their node IDs, with each one's listening port
+ * in an array indexed by ID.
+ *
+ * Membership, removal, and finding the lowest ID neither allocate nor walk the set, and
+ * intersecting two sets is a word-at-a-time AND, so up sets can be narrowed on every
+ * message of the election and termination paths without producing garbage. Iterating
+ * hands out `PeerReference`s for code that still wants them.
+ */
+public class PeerSet extends AbstractCollection<PeerReference> {
+
+    private final BitSet ids;
+    private int[] ports;
+
+    public PeerSet() {
+        this(new BitSet(), new int[8]);
+    }
+
+    private PeerSet(BitSet ids, int[] ports) {
+        this.ids = ids;
+        this.ports = ports;
+    }
+
+    public PeerSet(Collection<PeerReference> peers) {
+        this();
+        for (PeerReference peer : peers) {
+            add(peer);
+        }
+    }
+
+    /**
+     * @return the collection itself if it is already a `PeerSet`, so callers share it
+     *         just as they shared the collection it came in as
+     */
+    public static PeerSet of(Collection<PeerReference> peers) {
+        if (peers == null || peers instanceof PeerSet) {
+            return (PeerSet) peers;
+        }
+        return new PeerSet(peers);
+    }
+
+    /**
+     * @return a set of the given nodes, without their ports
+     */
+    public static PeerSet ofIDs(Collection<Integer> nodeIDs) {
+        PeerSet set = new PeerSet();
+        for (int nodeID : nodeIDs) {
+            set.add(nodeID, 0);
+        }
+        return set;
+    }
+
+    @Override public boolean add(PeerReference peer) {
+        return add(peer.getNodeID(), peer.getListeningPort());
+    }
+
+    public boolean add(int nodeID, int listeningPort) {
+        if (nodeID >= ports.length) {
+            ports = Arrays.copyOf(ports, Math.max(nodeID+1, ports.length*2));
+        }
+        boolean added = !ids.get(nodeID);
+        ids.set(nodeID);
+        ports[nodeID] = listeningPort;
+        return added;
+    }
+
+    public boolean contains(int nodeID) {
+        return nodeID >= 0 && ids.get(nodeID);
+    }
+
+    @Override public boolean contains(Object o) {
+        if (!(o instanceof PeerReference)) {
+            return false;
+        }
+        PeerReference peer = (PeerReference) o;
+        return contains(peer.getNodeID()) && ports[peer.getNodeID()] == peer.getListeningPort();
+    }
+
+    /**
+     * @return whether the node was in the set
+     */
+    public boolean remove(int nodeID) {
+        if (!contains(nodeID)) {
+            return false;
+        }
+        ids.clear(nodeID);
+        return true;
+    }
+
+    @Override public boolean remove(Object o) {
+        return contains(o) && remove(((PeerReference) o).getNodeID());
+    }
+
+    /**
+     * removes every node with an ID lower than `nodeID`
+     */
+    public void removeBelow(int nodeID) {
+        ids.clear(0, Math.max(0, nodeID));
+    }
+
+    /**
+     * keeps only the nodes that are also in `other`
+     */
+    public void retainAll(PeerSet other) {
+        ids.and(other.ids);
+    }
+
+    @Override public void clear() {
+        ids.clear();
+    }
+
+    /**
+     * @return the lowest node ID in the set, or -1 if it is empty
+     */
+    public int lowestID() {
+        return ids.nextSetBit(0);
+    }
+
+    /**
+     * @return the highest node ID in the set, or -1 if it is empty
+     */
+    public int highestID() {
+        return ids.length()-1;
+    }
+
+    /**
+     * @return the lowest node ID in the set that is at least `nodeID`, or -1 if none is
+     */
+    public int nextID(int nodeID) {
+        return ids.nextSetBit(nodeID);
+    }
+
+    /**
+     * @return the node with the lowest ID, or null if the set is empty
+     */
+    public PeerReference lowest() {
+        int nodeID = lowestID();
+        return nodeID < 0 ? null : get(nodeID);
+    }
+
+    /**
+     * @return a reference to the member with this ID, or null if there is none
+     */
+    public PeerReference get(int nodeID) {
+        return contains(nodeID) ? new PeerReference(nodeID, ports[nodeID]) : null;
+    }
+
+    public int getListeningPort(int nodeID) {
+        return ports[nodeID];
+    }
+
+    public PeerSet copy() {
+        return new PeerSet((BitSet) ids.clone(), ports.clone());
+    }
+
+    /**
+     * @return a copy of this set without the node
+     */
+    public PeerSet without(int nodeID) {
+        PeerSet copy = copy();
+        copy.remove(nodeID);
+        return copy;
+    }
+
+    /**
+     * @return the members' IDs, in ascending order
+     */
+    public List<Integer> ids() {
+        List<Integer> list = new ArrayList<>(size());
+        for (int id = lowestID(); id >= 0; id = nextID(id+1)) {
+            list.add(id);
+        }
+        return list;
+    }
+
+    @Override public int size() {
+        return ids.cardinality();
+    }
+
+    @Override public boolean isEmpty() {
+        return ids.isEmpty();
+    }
+
+    /**
+     * in ascending order of node ID
+     */
+    @Override public Iterator<PeerReference> iterator() {
+        return new Iterator<PeerReference>() {
+            int next = lowestID();
+            int last = -1;
+
+            @Override public boolean hasNext() {
+                return next >= 0;
+            }
+
+            @Override public PeerReference next() {
+                if (next < 0) {
+                    throw new NoSuchElementException();
+                }
+                last = next;
+                next = nextID(next+1);
+                return new PeerReference(last, ports[last]);
+            }
+
+            @Override public void remove() {
+                if (last < 0) {
+                    throw new IllegalStateException();
+                }
+                ids.clear(last);
+                last = -1;
+            }
+        };
+    }
+
+    @Override public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof PeerSet)) return false;
+        PeerSet other = (PeerSet) o;
+        if (!ids.equals(other.ids)) return false;
+        for (int id = lowestID(); id >= 0; id = nextID(id+1)) {
+            if (ports[id] != other.ports[id]) return false;
+        }
+        return true;
+    }
+
+    @Override public int hashCode() {
+        int result = ids.hashCode();
+        for (int id = lowestID(); id >= 0; id = nextID(id+1)) {
+            result = 31*result+ports[id];
+        }
+        return result;
+    }
+}
@@ -1,46 +1,78 @@
 package node.base;
 
+import messages.AbortRequest;
+import messages.Checkpoint;
+import messages.CommitRequest;
 import messages.Message;
-import messages.TokenReader;
+import messages.MessageCodec;
 import messages.TokenWriter;
+import messages.vote_req.VoteRequest;
+import util.Common;
+import util.DecisionMap;
+import util.NodeThreads;
+import util.SongTuple;
 
 import java.io.IOException;
-import java.io.Writer;
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Ethan Petuchowski 2/26/15
+ *
+ * Records are stored in the binary format of `MessageCodec`.
  */
 public abstract class DTLog {
 
-    protected Writer writer;
+    protected OutputStream out;
     Node node;
 
-    protected DTLog(Node node) {
-        this.node = node;
-    }
+    /* built by one scan of the log when it's opened, then kept up to date on append */
+    private DecisionMap decisions = null;   // decision by transaction ID
+    private int lastDecidedTransactionID = Common.NO_ONGOING_TRANSACTION;
+    /* checkpoints drop the decisions of transactions up to this one */
+    private int forgottenThrough = Common.NO_ONGOING_TRANSACTION;
+    private int recordsSinceCheckpoint = 0;
 
-    LineTokenWriter currentLine = null;
+    /* appends share this; checkpointing takes it exclusively so no record lands mid-truncation */
+    private final ReadWriteLock truncationLock = new ReentrantReadWriteLock();
 
-    public TokenWriter beginLog() {
-    	if (currentLine == null) {
-    		currentLine = new LineTokenWriter();
-    		return currentLine;
-    	}
-    	else
-    		throw new RuntimeException("Must end last line before beginning new one");
+    /* once the writer thread is started, appends and checkpoints queue here and run on it in order */
+    private final Object queueLock = new Object();  // guards the three fields below
+    private LinkedBlockingQueue<PendingWrite> writeQueue = null;
+    private Thread writerThread = null;
+    private boolean closed = false;
+    private volatile CompletableFuture<Void> lastQueued = CompletableFuture.completedFuture(null);
+
+    /**
+     * a record to append, or if `message` is null, a checkpoint of `playlist`
+     */
+    private static class PendingWrite {
+        final Message message;
+        final Collection<SongTuple> playlist;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        PendingWrite(Message message, Collection<SongTuple> playlist) {
+            this.message = message;
+            this.playlist = playlist;
+        }
     }
 
-    public void endLog(TokenWriter writer) {
-    	if (writer == currentLine && currentLine != null) {
-    		log(currentLine.getLine());
-    		currentLine = null;
-    	}
-    	else
-    		throw new RuntimeException("Cannot end log that way");
+    protected DTLog(Node node) {
+        this.node = node;
     }
 
     private class LineTokenWriter extends TokenWriter {
@@ -57,52 +89,397 @@ public abstract class DTLog {
 		}
     }
 
+    /**
+     * From now on, `logAsync` and `checkpoint` hand their work to a dedicated thread and
+     * return straight away. The thread writes whatever has queued up since its last write
+     * together, so under a group-committing log a burst of records shares one fsync.
+     * Reads first wait for everything queued before them.
+     */
+    public void startWriterThread() {
+        synchronized (queueLock) {
+            if (writeQueue != null || closed) {
+                return;
+            }
+            final LinkedBlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+            Thread writer = NodeThreads.newThread(() -> {
+                List<PendingWrite> batch = new ArrayList<>();
+                while (true) {
+                    try {
+                        batch.add(queue.take());
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    queue.drainTo(batch);
+                    write(batch);
+                    batch.clear();
+                }
+            }, "dtlog-writer");
+            writer.setDaemon(true);
+            writer.start();
+            writerThread = writer;
+            writeQueue = queue;
+        }
+    }
+
+    /**
+     * Finishes the writes already queued and stops the writer thread, so the log's files
+     * can be handed to a new instance. Subclasses release their files too. Writes
+     * submitted from now on, and any the writer never got to, fail rather than wait.
+     */
+    public void close() {
+        LinkedBlockingQueue<PendingWrite> queue;
+        Thread writer;
+        synchronized (queueLock) {
+            closed = true;
+            queue = writeQueue;
+            writer = writerThread;
+            writeQueue = null;
+            writerThread = null;
+        }
+        if (writer != null) {
+            awaitQueuedWrites();
+            writer.interrupt();
+            List<PendingWrite> abandoned = new ArrayList<>();
+            queue.drainTo(abandoned);
+            abandoned.forEach(write -> write.done.completeExceptionally(new IOException("DTLog closed")));
+        }
+    }
+
     public Collection<Message> getLoggedMessages() {
     	ArrayList<Message> messages = new ArrayList<>();
-    	String log = getLogAsString();
-    	String[] logLines = log.split("\n");
-    	for (String line : logLines) {
-            if (line.isEmpty()) continue;
-            String messageString = line.substring(line.lastIndexOf(']') + 2);
-    		String[] messageTokens = messageString.split("  ");
-
-    		TokenReader reader = new TokenReader() {
-    			int index = 0;
-				@Override
-				public String readToken() {
-					if (index < messageTokens.length) {
-						return messageTokens[index++];
-					}
-					return null;
-				}
-    		};
-    		messages.add(Message.readMessage(reader));
-    	}
+    	readLog().forEachRemaining(messages::add);
     	return messages;
     }
 
-    private void log(String string) {
-        try {
-            /* SAMPLE LOG
-            [3 2:32:34.3545] 2 ADD song_1 url_1
-            [3 2:32:34.3545] 5 SENT Yes vote
-            ...
+    /**
+     * @return an iterator that decodes the log one record at a time, oldest first, in place
+     *         from its segments, so only the record being handed out is ever on the heap
+     */
+    public Iterator<Message> readLog() {
+        awaitQueuedWrites();
+        return LogRecords.decode(LogRecords.forward(getLogSegments().iterator()), LogRecords.ALL);
+    }
 
-            */
-            String logOutput = String.format(
-                    "[%d %s] %s\n",
-                    node.getMyNodeID(),
-                    ZonedDateTime.now().format(DateTimeFormatter.ISO_INSTANT),
-                    string);
+    /**
+     * @return the records logged for one transaction, oldest first; the others are
+     *         skipped by their headers without being decoded
+     */
+    public Iterator<Message> readLog(int transactionID) {
+        awaitQueuedWrites();
+        return LogRecords.decode(
+                LogRecords.forward(getLogSegments().iterator()),
+                LogRecords.forTransaction(transactionID));
+    }
+
+    /**
+     * @return an iterator over the log newest first, which only reads as far back as it's asked to
+     */
+    public Iterator<Message> readLogBackwards() {
+        awaitQueuedWrites();
+        return LogRecords.decode(LogRecords.backward(getLogSegmentsNewestFirst().iterator()), LogRecords.ALL);
+    }
 
-            writer.write(logOutput);
-            writer.flush();
+    public Stream<Message> streamLog() {
+        return StreamSupport.stream(
+                Spliterators.spliteratorUnknownSize(readLog(), Spliterator.ORDERED | Spliterator.NONNULL),
+                false);
+    }
+
+    /**
+     * appends the message, returning once it's as durable as this log gets
+     *
+     * @throws CompletionException if the record couldn't be written, eg. because the log is closed
+     */
+    public void log(Message message) {
+        logAsync(message).join();
+    }
+
+    /**
+     * Appends the message, on the writer thread if it's been started.
+     *
+     * @return a future completed once the record is as durable as this log gets, or
+     *         completed exceptionally if writing it failed
+     */
+    public CompletableFuture<Void> logAsync(Message message) {
+        return submit(new PendingWrite(message, null));
+    }
+
+    /**
+     * Replaces the whole log with a CHECKPOINT record holding `playlist` and the decisions
+     * of the newest `Common.LOG_CHECKPOINT_DECISIONS` transactions, followed by the records
+     * of the transactions still undecided, so transactions may be in flight. `playlist`
+     * must reflect exactly the transactions committed in the log (including any still
+     * queued), none of the undecided ones.
+     */
+    public void checkpoint(Collection<SongTuple> playlist) {
+        submit(new PendingWrite(null, new ArrayList<>(playlist)));
+    }
+
+    private CompletableFuture<Void> submit(PendingWrite write) {
+        synchronized (queueLock) {
+            if (closed) {
+                write.done.completeExceptionally(new IOException("DTLog closed"));
+                return write.done;
+            }
+            if (writeQueue != null) {
+                writeQueue.add(write);
+                lastQueued = write.done;
+                return write.done;
+            }
+        }
+        write(Collections.singletonList(write));
+        return write.done;
+    }
+
+    /* must not be called holding this log's monitor, which the writer thread needs */
+    private void awaitQueuedWrites() {
+        lastQueued.handle((ignored, error) -> null).join();
+    }
+
+    /**
+     * carries out the writes in order, appending each run of consecutive records together
+     */
+    private void write(List<PendingWrite> batch) {
+        List<PendingWrite> records = new ArrayList<>();
+        for (PendingWrite write : batch) {
+            if (write.message != null) {
+                records.add(write);
+            }
+            else {
+                appendRecords(records);
+                records.clear();
+                writeCheckpoint(write);
+            }
+        }
+        appendRecords(records);
+    }
+
+    private void appendRecords(List<PendingWrite> writes) {
+        if (writes.isEmpty()) {
+            return;
+        }
+        List<ByteBuffer> toAppend = new ArrayList<>(writes.size());
+        for (PendingWrite write : writes) {
+            toAppend.add(MessageCodec.encode(write.message));
+        }
+        truncationLock.readLock().lock();
+        try {
+            appendAll(toAppend);
+            synchronized (this) {
+                if (decisions != null) {
+                    for (PendingWrite write : writes) {
+                        indexRecord(write.message);
+                    }
+                }
+            }
+            writes.forEach(write -> write.done.complete(null));
         }
         catch (IOException e) {
             e.printStackTrace();
+            writes.forEach(write -> write.done.completeExceptionally(e));
+        }
+        finally {
+            truncationLock.readLock().unlock();
         }
     }
 
-    public abstract String getLogAsString();
+    private void writeCheckpoint(PendingWrite write) {
+        truncationLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                scanLogIfNeeded();
+                int forget = Math.max(forgottenThrough, oldestToForget());
+                DecisionMap kept = decisionsAfter(forget);
+                Checkpoint checkpoint = new Checkpoint(
+                        lastDecidedTransactionID,
+                        new ArrayList<>(write.playlist),
+                        kept,
+                        forget);
+                List<ByteBuffer> records = new ArrayList<>();
+                records.add(MessageCodec.encode(checkpoint));
+                records.addAll(undecidedRecords());
+                replaceLog(records);
+                decisions = kept;
+                forgottenThrough = forget;
+                recordsSinceCheckpoint = records.size()-1;
+            }
+            write.done.complete(null);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            write.done.completeExceptionally(e);
+        }
+        finally {
+            truncationLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return what a checkpoint has to carry over for recovery to go on as before: from
+     *         the oldest undecided vote request on, every record but those of transactions
+     *         already decided, whose outcome the checkpoint holds
+     */
+    private List<ByteBuffer> undecidedRecords() {
+        List<ByteBuffer> carried = new ArrayList<>();
+        boolean undecidedSeen = false;
+        Iterator<ByteBuffer> bodies = LogRecords.forward(getLogSegments().iterator());
+        while (bodies.hasNext()) {
+            Message message = MessageCodec.decodeBody(bodies.next());
+            boolean decided = decisions.get(message.getTransactionID()) != null;
+            undecidedSeen |= message instanceof VoteRequest && !decided;
+            if (undecidedSeen && !decided && !(message instanceof Checkpoint)) {
+                carried.add(MessageCodec.encode(message));
+            }
+        }
+        return carried;
+    }
+
+    /**
+     * @return the newest transaction whose decision the next checkpoint may drop
+     */
+    private int oldestToForget() {
+        if (Common.LOG_CHECKPOINT_DECISIONS <= 0) {
+            return Common.NO_ONGOING_TRANSACTION;
+        }
+        int[] newest = {Common.NO_ONGOING_TRANSACTION};
+        decisions.forEach((decision, txnID) -> newest[0] = Math.max(newest[0], txnID));
+        return newest[0]-Common.LOG_CHECKPOINT_DECISIONS;
+    }
+
+    private DecisionMap decisionsAfter(int transactionID) {
+        DecisionMap kept = new DecisionMap();
+        decisions.forEach((decision, txnID) -> {
+            if (txnID > transactionID) {
+                kept.put(txnID, decision);
+            }
+        });
+        return kept;
+    }
+
+    /**
+     * @return true once enough records have been appended since the last checkpoint
+     */
+    public synchronized boolean isCheckpointDue() {
+        scanLogIfNeeded();
+        return Common.LOG_CHECKPOINT_INTERVAL > 0
+               && recordsSinceCheckpoint >= Common.LOG_CHECKPOINT_INTERVAL;
+    }
+
+    /**
+     * @return the most recently logged COMMIT or ABORT for the transaction, or null if undecided
+     */
+    public Message getDecisionFor(int transactionID) {
+        awaitQueuedWrites();
+        synchronized (this) {
+            scanLogIfNeeded();
+            return decisionMessage(transactionID, decisions.get(transactionID));
+        }
+    }
+
+    /**
+     * @return whether the transaction is old enough that a checkpoint may have dropped its
+     *         decision, in which case `getDecisionFor` returning null doesn't mean it's undecided
+     */
+    public synchronized boolean mayHaveForgotten(int transactionID) {
+        scanLogIfNeeded();
+        return transactionID <= forgottenThrough;
+    }
+
+    private static Message decisionMessage(int transactionID, Message.Command decision) {
+        if (decision == null) {
+            return null;
+        }
+        return decision == Message.Command.COMMIT
+               ? new CommitRequest(transactionID)
+               : new AbortRequest(transactionID);
+    }
+
+    /**
+     * Builds the decision index with one forward scan, so lookups never have to read the
+     * log. Implementations call this once their existing records can be read.
+     */
+    protected synchronized void indexLog() {
+        scanLogIfNeeded();
+    }
+
+    private void scanLogIfNeeded() {
+        if (decisions != null) {
+            return;
+        }
+        decisions = new DecisionMap();
+        Iterator<ByteBuffer> bodies = LogRecords.forward(getLogSegments().iterator());
+        while (bodies.hasNext()) {
+            indexRecord(MessageCodec.decodeBody(bodies.next()));
+        }
+    }
+
+    private void indexRecord(Message message) {
+        if (message.getCommand().isDecision()) {
+            decisions.put(message.getTransactionID(), message.getCommand());
+            lastDecidedTransactionID = message.getTransactionID();
+        }
+        else if (message instanceof Checkpoint) {
+            decisions.putAll(((Checkpoint) message).getDecisions());
+            forgottenThrough = ((Checkpoint) message).getForgottenThrough();
+            lastDecidedTransactionID = message.getTransactionID();
+            recordsSinceCheckpoint = -1;
+        }
+        recordsSinceCheckpoint++;
+    }
 
+    /**
+     * writes encoded records in order; returns once they're all as durable as this log gets
+     */
+    protected void appendAll(List<ByteBuffer> records) throws IOException {
+        for (ByteBuffer record : records) {
+            append(record);
+        }
+    }
+
+    /**
+     * writes one encoded record; returns once the record is as durable as this log gets
+     */
+    protected void append(ByteBuffer record) throws IOException {
+        byte[] bytes = new byte[record.remaining()];
+        record.get(bytes);
+        out.write(bytes);
+        out.flush();
+    }
+
+    /**
+     * @return the raw log as one or more buffers, oldest first, each positioned at its first
+     *         record; implementations may produce (eg. map) each buffer only when it's reached
+     */
+    protected abstract Iterable<ByteBuffer> getLogSegments();
+
+    /**
+     * @return the same buffers as `getLogSegments`, newest first
+     */
+    protected Iterable<ByteBuffer> getLogSegmentsNewestFirst() {
+        List<ByteBuffer> segments = new ArrayList<>();
+        getLogSegments().forEach(segments::add);
+        Collections.reverse(segments);
+        return segments;
+    }
+
+    /**
+     * atomically (with respect to crashes) replaces the log's contents with the given
+     * records, the first of them a checkpoint
+     */
+    protected abstract void replaceLog(List<ByteBuffer> records) throws IOException;
+
+    /**
+     * @return a human-readable rendering of the log, one record per line
+     */
+    public String getLogAsString() {
+        StringBuilder sb = new StringBuilder();
+        for (Iterator<Message> it = readLog(); it.hasNext(); ) {
+            Message message = it.next();
+            LineTokenWriter line = new LineTokenWriter();
+            Message.writeMessage(message, line);
+            sb.append(line.getLine()).append('\n');
+        }
+        return sb.toString();
+    }
 }
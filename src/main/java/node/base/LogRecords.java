@@ -0,0 +1,150 @@
+package node.base;
+
+import messages.Message;
+import messages.MessageCodec;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Lazy iterators over the records in a log's segments.
+ *
+ * Records are validated and sliced in place; a record is only decoded into a `Message`
+ * once it has been handed out, and a filter can reject it from its header alone.
+ */
+class LogRecords {
+
+    interface HeaderFilter {
+        boolean accept(Message.Command command, int transactionID);
+    }
+
+    static final HeaderFilter ALL = (command, transactionID) -> true;
+
+    static HeaderFilter forTransaction(int transactionID) {
+        return (command, txnID) -> txnID == transactionID;
+    }
+
+    /**
+     * @return every record body in the given segments, oldest first
+     */
+    static Iterator<ByteBuffer> forward(Iterator<ByteBuffer> segments) {
+        return new BodyIterator() {
+            private ByteBuffer segment = ByteBuffer.allocate(0);
+
+            @Override ByteBuffer computeNext() {
+                ByteBuffer body;
+                while ((body = MessageCodec.nextRecordBody(segment)) == null) {
+                    if (!segments.hasNext()) {
+                        return null;
+                    }
+                    segment = segments.next();
+                }
+                return body;
+            }
+        };
+    }
+
+    /**
+     * Records only carry their length up front, so each segment is walked forwards once to
+     * find where its records start before they are handed out in reverse. Only one
+     * segment's offsets are held at a time.
+     *
+     * @param segments the log's segments, newest first
+     * @return every record body in the given segments, newest first
+     */
+    static Iterator<ByteBuffer> backward(Iterator<ByteBuffer> segments) {
+        return new BodyIterator() {
+            private ByteBuffer segment;
+            private int[] starts = new int[16];
+            private int[] limits = new int[16];
+            private int remaining = 0;
+
+            @Override ByteBuffer computeNext() {
+                while (remaining == 0) {
+                    if (!segments.hasNext()) {
+                        return null;
+                    }
+                    segment = segments.next();
+                    indexSegment();
+                }
+                remaining--;
+                ByteBuffer body = segment.duplicate();
+                body.limit(limits[remaining]);
+                body.position(starts[remaining]);
+                return body.slice();
+            }
+
+            private void indexSegment() {
+                ByteBuffer cursor = segment.duplicate();
+                ByteBuffer body;
+                while ((body = MessageCodec.nextRecordBody(cursor)) != null) {
+                    if (remaining == starts.length) {
+                        starts = Arrays.copyOf(starts, remaining*2);
+                        limits = Arrays.copyOf(limits, remaining*2);
+                    }
+                    starts[remaining] = cursor.position()-body.remaining();
+                    limits[remaining] = cursor.position();
+                    remaining++;
+                }
+            }
+        };
+    }
+
+    /**
+     * @return the records among `bodies` that pass `filter`, decoded one at a time
+     */
+    static Iterator<Message> decode(Iterator<ByteBuffer> bodies, HeaderFilter filter) {
+        return new Iterator<Message>() {
+            private ByteBuffer next = null;
+
+            @Override public boolean hasNext() {
+                while (next == null && bodies.hasNext()) {
+                    ByteBuffer body = bodies.next();
+                    if (filter == ALL || filter.accept(
+                            MessageCodec.commandOf(body),
+                            MessageCodec.transactionIDOf(body)))
+                    {
+                        next = body;
+                    }
+                }
+                return next != null;
+            }
+
+            @Override public Message next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Message message = MessageCodec.decodeBody(next);
+                next = null;
+                return message;
+            }
+        };
+    }
+
+    private static abstract class BodyIterator implements Iterator<ByteBuffer> {
+        private ByteBuffer next = null;
+
+        /**
+         * @return the next body, or null once there are none left
+         */
+        abstract ByteBuffer computeNext();
+
+        @Override public boolean hasNext() {
+            if (next == null) {
+                next = computeNext();
+            }
+            return next != null;
+        }
+
+        @Override public ByteBuffer next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            ByteBuffer body = next;
+            next = null;
+            return body;
+        }
+    }
+}
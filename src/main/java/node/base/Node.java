@@ -4,8 +4,8 @@ import messages.DelayMessage;
 import messages.ElectedMessage;
 import messages.Message;
 import messages.PeerTimeout;
-import messages.TokenWriter;
 import messages.vote_req.AddRequest;
+import messages.vote_req.BatchRequest;
 import messages.vote_req.DeleteRequest;
 import messages.vote_req.UpdateRequest;
 import messages.vote_req.VoteRequest;
@@ -14,26 +14,32 @@ import node.LogRecoveryStateMachine;
 import node.ParticipantRecoveryStateMachine;
 import node.ParticipantStateMachine;
 import node.PeerReference;
+import node.PeerSet;
 import system.failures.DeathAfter;
 import system.failures.PartialBroadcast;
 import system.network.Connection;
+import system.network.ConnectionTable;
 import system.network.MessageReceiver;
 import system.network.QueueConnection;
 import util.Common;
+import util.HashedWheelTimer;
+import util.Mailbox;
 import util.SongTuple;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Ethan Petuchowski 2/27/15
@@ -47,24 +53,89 @@ public abstract class Node implements MessageReceiver {
     protected final TimeoutMonitor timeoutMonitor;
 
     protected Connection txnMgrConn;
-    protected Collection<Connection> peerConns = new ArrayList<>();
-    private Collection<PeerReference> upSet = null;
+    protected final ConnectionTable peerConns = new ConnectionTable();
+    private PeerSet upSet = null;
 
     /* failures */
     public PartialBroadcast partialBroadcast = null;
-    protected Collection<DeathAfter> deathAfters = new ArrayList<>();
+    /* read on the transport's thread before a message is handed to the node */
+    protected Collection<DeathAfter> deathAfters = new CopyOnWriteArrayList<>();
     protected boolean deathAfterElected = false;
 
     protected int msgsSent = 0;
 
+    /* messages held back by `Common.MESSAGE_DELAY`, in the order they arrived; guarded by this */
+    private final Queue<DelayedMessage> delayedMessages = new ArrayDeque<>();
+
+    /* null when the node runs messages and timers under its monitor instead */
+    private final Mailbox mailbox;
+    /* without a mailbox, timer events queue here for one thread to take the monitor for,
+     * rather than each taking a thread to wait for it on */
+    private final Mailbox timerEvents;
+    /* once set, the node handles nothing more */
+    private volatile boolean crashed = false;
+
     public Node(int myNodeID) {
+        this(myNodeID, false);
+    }
+
+    /**
+     * @param withMailbox whether messages and timer events are queued for one thread at a
+     *                    time to handle, rather than handled by whichever thread brought
+     *                    them once it holds the node's monitor
+     */
+    protected Node(int myNodeID, boolean withMailbox) {
         this.myNodeID = myNodeID;
         stateMachine = new ParticipantStateMachine(this);
         this.timeoutMonitor = new TimeoutMonitor();
+        this.mailbox = withMailbox ? new Mailbox("node-"+myNodeID) : null;
+        this.timerEvents = withMailbox ? null : new Mailbox("node-"+myNodeID+"-timers");
+    }
+
+    /**
+     * Runs the task as the node: queued on its mailbox if it has one, otherwise right
+     * away on this thread under its monitor. Either way, no two such tasks overlap.
+     */
+    public void execute(Runnable task) {
+        if (mailbox != null) {
+            mailbox.execute(() -> {
+                if (!crashed) {
+                    task.run();
+                }
+            });
+        }
+        else {
+            synchronized (this) {
+                if (!crashed) {
+                    task.run();
+                }
+            }
+        }
     }
 
+    /**
+     * Stops the node handling messages, timeouts, and scheduled tasks, as if its process
+     * had died; whatever it is in the middle of handling still finishes.
+     */
+    public void crash() {
+        crashed = true;
+        if (mailbox != null) {
+            mailbox.close();
+        }
+        else {
+            timerEvents.close();
+        }
+    }
+
+    public boolean isCrashed() {
+        return crashed;
+    }
+
+    /**
+     * replaces any connection already held to the same peer
+     */
     public void addConnection(Connection connection) {
-        peerConns.add(connection);
+        peerConns.put(connection);
     }
 
     public int getMyNodeID() {
@@ -85,22 +156,37 @@ public abstract class Node implements MessageReceiver {
 
     public void recoverFromDtLog() {
     	LogRecoveryStateMachine recoveryMachine = new LogRecoveryStateMachine(this);
-    	VoteRequest uncommitted = recoveryMachine.getUncommittedRequest();
-    	if (uncommitted == null || !recoveryMachine.didVoteYesOnRequest()) {
+    	List<VoteRequest> uncommitted = recoveryMachine.getUncommittedYesVotes();
+    	if (uncommitted.isEmpty()) {
             log("starting as participant");
 //            stateMachine = new ParticipantStateMachine(this);
     	}
     	else {
             log("starting as participant in recovery");
-    		stateMachine = new ParticipantRecoveryStateMachine(this, uncommitted, recoveryMachine.getLastUpSet());
+    		becomeParticipantInRecovery(uncommitted, recoveryMachine.getLastUpSet());
 
     	}
     }
 
-    public void logMessage(Message message) {
-    	TokenWriter writer = dtLog.beginLog();
-        Message.writeMessage(message, writer);
-        dtLog.endLog(writer);
+    /**
+     * @param uncommitted the transactions this node voted YES on but never learned the outcome of, oldest first
+     */
+    public void becomeParticipantInRecovery(List<VoteRequest> uncommitted, PeerSet lastUpSet) {
+        stateMachine = new ParticipantRecoveryStateMachine(this, uncommitted, lastUpSet);
+    }
+
+    /**
+     * @return a future completed once the record is durable; callers wait on it only where
+     *         the protocol needs the record on disk before it goes on (eg. before voting YES)
+     */
+    public CompletableFuture<Void> logMessage(Message message) {
+        /* a transaction is applied as soon as its COMMIT is logged, so when a new vote request
+         * is logged the playlist matches the decided part of the log exactly and is safe to
+         * checkpoint; the transactions still in flight are carried past the checkpoint */
+        if (message instanceof VoteRequest && dtLog.isCheckpointDue()) {
+            dtLog.checkpoint(playlist);
+        }
+        return dtLog.logAsync(message);
     }
 
     public boolean getVoteValue(VoteRequest vote) {
@@ -111,6 +197,8 @@ public abstract class Node implements MessageReceiver {
     		return hasSong(((UpdateRequest)vote).getSongName());
     	case DELETE:
     		return hasSong(((DeleteRequest)vote).getSongName());
+    	case BATCH:
+    		return playlistAfter((BatchRequest)vote) != null;
 		default:
     		return false;
     	}
@@ -148,6 +236,9 @@ public abstract class Node implements MessageReceiver {
         case DELETE:
             applyDeleteToVolatilePlaylist((DeleteRequest) action);
             break;
+        case BATCH:
+            applyBatchToVolatilePlaylist((BatchRequest) action);
+            break;
         default:
         	break;
 	    }
@@ -165,6 +256,60 @@ public abstract class Node implements MessageReceiver {
         addSongToPlaylist(addRequest.getSongTuple());
     }
 
+    /**
+     * applies every operation in the batch, or leaves the playlist untouched if any of
+     * them would fail
+     */
+    private void applyBatchToVolatilePlaylist(BatchRequest batchRequest) {
+        Set<SongTuple> after = playlistAfter(batchRequest);
+        if (after != null) {
+            restorePlaylist(after);
+        }
+        else {
+            System.err.println("Node "+getMyNodeID()+": batch "+batchRequest.getTransactionID()+" no longer applies, playlist unchanged");
+        }
+    }
+
+    /**
+     * @return what the playlist would be after the batch's operations, in order, or null
+     *         if one of them would be voted NO at that point
+     */
+    private Set<SongTuple> playlistAfter(BatchRequest batchRequest) {
+        Set<SongTuple> copy = new TreeSet<>(playlist);
+        for (VoteRequest operation : batchRequest.getOperations()) {
+            switch (operation.getCommand()) {
+            case ADD:
+                if (!copy.add(((AddRequest) operation).getSongTuple())) {
+                    return null;
+                }
+                break;
+            case UPDATE:
+                UpdateRequest update = (UpdateRequest) operation;
+                if (!copy.remove(new SongTuple(update.getSongName(), ""))) {
+                    return null;
+                }
+                copy.add(update.getUpdatedSong());
+                break;
+            case DELETE:
+                if (!copy.remove(new SongTuple(((DeleteRequest) operation).getSongName(), ""))) {
+                    return null;
+                }
+                break;
+            default:
+                return null;
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * replaces the volatile playlist with one restored from a checkpoint
+     */
+    public void restorePlaylist(Collection<SongTuple> songs) {
+        playlist.clear();
+        playlist.addAll(songs);
+    }
+
     public boolean addSongToPlaylist(SongTuple songTuple) {
         return playlist.add(songTuple);
     }
@@ -178,6 +323,11 @@ public abstract class Node implements MessageReceiver {
         addSongToPlaylist(updatedSong);
     }
 
+    /**
+     * @return false if the message wasn't handled. One queued to be handled later (on the
+     *         mailbox, or behind `Common.MESSAGE_DELAY`) counts as handled; if the state
+     *         machine turns it down once it's delivered, `deliver` logs that instead.
+     */
     @Override public boolean receiveMessageFrom(Connection connection, int msgsRcvd) {
         final int otherEnd = connection.getReceiverID();
         for (DeathAfter deathAfter : deathAfters) {
@@ -194,33 +344,106 @@ public abstract class Node implements MessageReceiver {
         catch (EOFException e) {
             System.err.println("Ignored EOFE");
         }
-        if (message != null) {
-            synchronized (this) {
-                switch (message.getCommand()) {
-                    case PARTIAL_BROADCAST:
-                    case DEATH_AFTER:
-                        addFailure(message);
-                        return true;
-                    case DELAY:
-                        Common.MESSAGE_DELAY = ((DelayMessage) message).getDelaySec()*1000;
-                        return true;
-                    case LIST:
-                        listNode();
-                        return true;
-                }
-                try { Thread.sleep(Common.MESSAGE_DELAY); }
-                catch (InterruptedException ignored) {}
+        if (message == null) {
+            return false;
+        }
+        if (mailbox != null) {
+            /* the state machine's answer isn't known yet; the message is taken either way */
+            final Message received = message;
+            execute(() -> handle(connection, received));
+            return true;
+        }
+        synchronized (this) {
+            return handle(connection, message);
+        }
+    }
 
-                if (message.getCommand() == Message.Command.UR_ELECTED) {
-                    if (deathAfterElected) {
-                        log("I'm not cut out for politics");
-                        selfDestruct();
-                    }
-                }
-                return stateMachine.receiveMessage(connection, message);
+    private boolean handle(Connection connection, Message message) {
+        if (crashed) {
+            return false;
+        }
+        switch (message.getCommand()) {
+            case PARTIAL_BROADCAST:
+            case DEATH_AFTER:
+                addFailure(message);
+                return true;
+            case DELAY:
+                Common.MESSAGE_DELAY = ((DelayMessage) message).getDelaySec()*1000;
+                return true;
+            case LIST:
+                listNode();
+                return true;
+        }
+
+        /* later messages queue behind delayed ones, so none overtakes another */
+        if (Common.MESSAGE_DELAY > 0 || !delayedMessages.isEmpty()) {
+            delayedMessages.add(new DelayedMessage(connection, message, System.currentTimeMillis()+Common.MESSAGE_DELAY));
+            if (delayedMessages.size() == 1) {
+                schedule(this::deliverDelayedMessages, Common.MESSAGE_DELAY);
             }
+            return true;
         }
-        return false;
+        return deliver(connection, message);
+    }
+
+    private boolean deliver(Connection connection, Message message) {
+        if (message.getCommand() == Message.Command.UR_ELECTED) {
+            if (deathAfterElected) {
+                log("I'm not cut out for politics");
+                selfDestruct();
+            }
+        }
+        boolean handled = stateMachine.receiveMessage(connection, message);
+        if (!handled) {
+            log("Unhandled "+message.getCommand()+" from "+connection.getReceiverID());
+        }
+        return handled;
+    }
+
+    /**
+     * Scheduled for the oldest delayed message's due time, so that one goes regardless,
+     * along with any behind it that are due by now.
+     */
+    private void deliverDelayedMessages() {
+        DelayedMessage head = delayedMessages.poll();
+        if (head == null) {
+            return;
+        }
+        deliver(head.connection, head.message);
+        long now = System.currentTimeMillis();
+        while (!delayedMessages.isEmpty() && delayedMessages.peek().dueMillis <= now) {
+            DelayedMessage next = delayedMessages.poll();
+            deliver(next.connection, next.message);
+        }
+        if (!delayedMessages.isEmpty()) {
+            schedule(this::deliverDelayedMessages, delayedMessages.peek().dueMillis-now);
+        }
+    }
+
+    private static class DelayedMessage {
+        final Connection connection;
+        final Message message;
+        final long dueMillis;
+
+        DelayedMessage(Connection connection, Message message, long dueMillis) {
+            this.connection = connection;
+            this.message = message;
+            this.dueMillis = dueMillis;
+        }
+    }
+
+    /**
+     * Runs the task as the node (see `execute`) once `delayMillis` has passed, without the
+     * node waiting on it in the meantime, so it keeps answering its peers.
+     *
+     * @return a handle to cancel the task with
+     */
+    public HashedWheelTimer.Timeout schedule(Runnable task, long delayMillis) {
+        /* enqueueing is quick enough for the wheel's own thread */
+        if (mailbox != null) {
+            return TIMER_WHEEL.schedule(() -> execute(task), delayMillis);
+        }
+        return TIMER_WHEEL.schedule(() -> timerEvents.execute(() -> execute(task)), delayMillis);
     }
 
     private void listNode() {
@@ -237,6 +460,10 @@ public abstract class Node implements MessageReceiver {
     	stateMachine = CoordinatorStateMachine.startInTerminationProtocol(this, ongoingAction, precommitted);
     }
 
+    public void becomeCoordinatorInRecovery(List<VoteRequest> ongoingActions, Set<Integer> precommitted) {
+    	stateMachine = CoordinatorStateMachine.startInTerminationProtocol(this, ongoingActions, precommitted);
+    }
+
     public void becomeParticipant() {
         log("Becoming participant");
         stateMachine = new ParticipantStateMachine(this);
@@ -246,16 +473,24 @@ public abstract class Node implements MessageReceiver {
     	stateMachine = ParticipantStateMachine.startInTerminationProtocol(this, ongoingAction, precommit);
     }
 
+    public void becomeParticipantInTerminationProtocol(List<VoteRequest> ongoingActions, Set<Integer> precommitted) {
+    	stateMachine = ParticipantStateMachine.startInTerminationProtocol(this, ongoingActions, precommitted);
+    }
+
     public StateMachine getStateMachine() {
         return stateMachine;
     }
 
-    public Collection<Connection> getPeerConns() {
+    public ConnectionTable getPeerConns() {
         return peerConns;
     }
 
     public Connection getPeerConnForId(int id) {
-    	return peerConns.stream().filter(c -> c.getReceiverID() == id).findFirst().orElse(null);
+    	return peerConns.get(id);
+    }
+
+    public boolean isConnectedToTxnMgr() {
+        return txnMgrConn != null;
     }
 
     public void sendTxnMgrMsg(Message message) {
@@ -268,6 +503,9 @@ public abstract class Node implements MessageReceiver {
     }
 
     public void send(Connection conn, Message message) throws IOException {
+        if (crashed) {
+            return;     // whatever it was in the middle of, a crashed node says nothing more
+        }
         msgsSent++;
         conn.sendMessage(message);
     }
@@ -284,21 +522,15 @@ public abstract class Node implements MessageReceiver {
     public abstract Connection connectTo(PeerReference peerReference) throws IOException;
 
     public boolean isConnectedTo(PeerReference reference) {
-        return peerConns.stream()
-                        .filter(conn -> conn.getReceiverID() == reference.getNodeID())
-                        .count() > 0;
-    }
-
-    public void setPeerConns(Collection<Connection> peerConns) {
-        this.peerConns = peerConns;
+        return peerConns.isConnectedTo(reference.getNodeID());
     }
 
-    public Collection<PeerReference> getUpSet() {
+    public PeerSet getUpSet() {
         return upSet;
     }
 
     public void setUpSet(Collection<PeerReference> upSet) {
-        this.upSet = upSet;
+        this.upSet = PeerSet.of(upSet);
     }
 
     public void resetTimersFor(int peerID) {
@@ -312,25 +544,37 @@ public abstract class Node implements MessageReceiver {
     public abstract void addTimerFor(int peerID);
 
     public void electNewLeader(VoteRequest ongoingAction, boolean precommitted) {
+        electNewLeader(
+                Collections.singletonList(ongoingAction),
+                precommitted ? Collections.singleton(ongoingAction.getTransactionID()) : Collections.emptySet());
+    }
+
+    /**
+     * hands every undecided transaction to the lowest-numbered node in the up set, which
+     * runs the termination protocol for all of them
+     *
+     * @param precommitted IDs of the `ongoingActions` this node had received a PRE_COMMIT for
+     */
+    public void electNewLeader(List<VoteRequest> ongoingActions, Set<Integer> precommitted) {
         while (true) {
             if (upSet.isEmpty()) {
                 throw new RuntimeException("Upset should not be empty");
             }
-            PeerReference newCoordinator = upSet.stream().min((a, b) -> a.compareTo(b)).get();
+            PeerReference newCoordinator = upSet.lowest();
             if (newCoordinator.getNodeID() == myNodeID) {
                 if (deathAfterElected) {
                     log("I wouldn't even elect myself.");
                     selfDestruct();
                 }
-                becomeCoordinatorInRecovery(ongoingAction, precommitted);
+                becomeCoordinatorInRecovery(ongoingActions, precommitted);
                 return;
             }
             else {
                 try {
                     final Connection newCoordConn = getOrConnectToPeer(newCoordinator);
-                    newCoordConn.sendMessage(new ElectedMessage(ongoingAction.getTransactionID()));
+                    newCoordConn.sendMessage(new ElectedMessage(ongoingActions.get(0).getTransactionID()));
                     resetTimersFor(newCoordinator.getNodeID());
-                    stateMachine = ParticipantStateMachine.startInTerminationProtocol(this, ongoingAction, precommitted);
+                    stateMachine = ParticipantStateMachine.startInTerminationProtocol(this, ongoingActions, precommitted);
                     final ParticipantStateMachine participantStateMachine = (ParticipantStateMachine) stateMachine;
                     participantStateMachine.setCoordinatorID(newCoordinator.getNodeID());
                     participantStateMachine.setCoordinatorConnection(newCoordConn);
@@ -339,7 +583,7 @@ public abstract class Node implements MessageReceiver {
                 catch (IOException e) {
                     System.err.println("Couldn't elect "+newCoordinator.getNodeID()+" bc connection failed");
                     sendTxnMgrMsg(new PeerTimeout(newCoordinator.getNodeID()));
-                    upSet.remove(newCoordinator);
+                    upSet.remove(newCoordinator.getNodeID());
                 }
             }
         }
@@ -380,79 +624,89 @@ public abstract class Node implements MessageReceiver {
     public abstract void selfDestruct();
 
     public Message getDecisionFor(int transactionID) {
-        List<Message> messages = new ArrayList<>(getDtLog().getLoggedMessages());
-        Collections.reverse(messages);
-        return messages.stream()
-                       .filter(m -> m.getTransactionID() == transactionID
-                                    && m.getCommand().isDecision())
-                       .findFirst()
-                       .orElse(null);
+        return getDtLog().getDecisionFor(transactionID);
+    }
+
+    /**
+     * @return whether the transaction is old enough that the log may no longer hold its decision
+     */
+    public boolean mayHaveForgottenDecisionFor(int transactionID) {
+        return getDtLog().mayHaveForgotten(transactionID);
     }
 
     public PartialBroadcast getPartialBroadcast() {
         return partialBroadcast;
     }
 
+    /* one wheel serves the timeouts of every node in the process */
+    private static final HashedWheelTimer TIMER_WHEEL = new HashedWheelTimer(Common.TIMER_TICK_MILLISECONDS, 512);
+
     protected class TimeoutMonitor {
 
-        /* timers by peerID */
-        Map<Integer, List<Thread>> ongoingTimers = new HashMap<>();
+        /* each peer's pending timeout, indexed by its node ID */
+        private HashedWheelTimer.Timeout[] timers = new HashedWheelTimer.Timeout[8];
 
-        public void startTimer(int peerID) {
-            if (ongoingTimers.containsKey(peerID)) {
-                ongoingTimers.get(peerID).add(createTimer(peerID));
-            }
-            else {
-                ongoingTimers.put(peerID, new ArrayList<>(Arrays.asList(createTimer(peerID))));
+        public synchronized void startTimer(int peerID) {
+            /* a timer already running for the peer goes off first, cancelling any later one */
+            if (peerID < timers.length && timers[peerID] != null) {
+                return;
             }
+            schedule(peerID);
         }
 
-        public void cancelTimersFor(int peerID) {
-            if (ongoingTimers.containsKey(peerID)) {
-                ongoingTimers.get(peerID).stream().forEach(Thread::interrupt);
-                ongoingTimers.remove(peerID);
+        public synchronized void cancelTimersFor(int peerID) {
+            if (peerID >= 0 && peerID < timers.length && timers[peerID] != null) {
+                timers[peerID].cancel();
+                timers[peerID] = null;
             }
         }
 
-        public void resetTimersFor(int peerID) {
+        public synchronized void resetTimersFor(int peerID) {
             cancelTimersFor(peerID);
-            startTimer(peerID);
+            schedule(peerID);
         }
 
-        private Thread createTimer(int peerID) {
-            final Thread thread = new Thread(new TimeoutTimer(peerID, Common.TIMEOUT_MILLISECONDS()));
-            thread.start();
-            return thread;
+        private void schedule(int peerID) {
+            if (peerID >= timers.length) {
+                timers = Arrays.copyOf(timers, Math.max(peerID+1, timers.length*2));
+            }
+            TimeoutTask task = new TimeoutTask(peerID);
+            task.timeout = TIMER_WHEEL.schedule(task, Common.TIMEOUT_MILLISECONDS());
+            timers[peerID] = task.timeout;
         }
 
-        class TimeoutTimer implements Runnable {
+        /**
+         * Runs on the wheel's thread, so it hands the `PeerTimeout` to the node's mailbox,
+         * or else to its timer events, rather than hold up every other timer while the
+         * node handles it.
+         */
+        class TimeoutTask implements Runnable {
 
             final int peerID;
-            final int milliseconds;
+            HashedWheelTimer.Timeout timeout;
 
-            TimeoutTimer(int peerID, int milliseconds) {
+            TimeoutTask(int peerID) {
                 this.peerID = peerID;
-                this.milliseconds = milliseconds;
             }
 
             @Override public void run() {
-                try {
-                    Thread.sleep(milliseconds);
-
-                    if (Thread.interrupted()) return;
-
-                    /* this means a Timeout DID occur */
-                    cancelTimersFor(peerID);
+                synchronized (TimeoutMonitor.this) {
+                    if (timers[peerID] != timeout) {
+                        return;     // the timer was reset just as it went off
+                    }
+                    timers[peerID] = null;
+                }
 
-                    receiveMessageFrom(
-                            new QueueConnection(
-                                    peerID,
-                                    new LinkedList<>(Arrays.asList(new PeerTimeout(peerID))),
-                                    new LinkedList<>()),
-                            0);
+                /* this means a Timeout DID occur */
+                QueueConnection timedOut = new QueueConnection(
+                        peerID,
+                        new LinkedList<>(Arrays.asList(new PeerTimeout(peerID))),
+                        new LinkedList<>());
+                if (mailbox != null) {
+                    receiveMessageFrom(timedOut, 0);     // only enqueues
                 }
-                catch (InterruptedException e) {
-                    /* this means a Timeout did NOT occur */
+                else {
+                    timerEvents.execute(() -> receiveMessageFrom(timedOut, 0));
                 }
             }
         }
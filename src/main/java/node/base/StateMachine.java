@@ -2,29 +2,29 @@ package node.base;
 
 import messages.Message;
 import node.PeerReference;
+import node.PeerSet;
 import system.network.Connection;
 
 import java.io.EOFException;
-import java.util.ArrayList;
 import java.util.Collection;
 
 /**
  * Ethan Petuchowski 2/26/15
  */
 public abstract class StateMachine {
-    private Collection<PeerReference> peerSet = new ArrayList<>();
+    private PeerSet peerSet = new PeerSet();
     protected Node ownerNode;
 
     protected StateMachine(Node node) {
         ownerNode = node;
     }
 
-    public Collection<PeerReference> getPeerSet() {
+    public PeerSet getPeerSet() {
         return peerSet;
     }
 
     public void setPeerSet(Collection<PeerReference> peerSet) {
-        this.peerSet = peerSet;
+        this.peerSet = PeerSet.of(peerSet);
     }
 
     public abstract boolean receiveMessage(Connection overConnection, Message message);
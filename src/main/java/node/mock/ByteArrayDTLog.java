@@ -5,7 +5,9 @@ import node.base.DTLog;
 import node.base.Node;
 
 import java.io.ByteArrayOutputStream;
-import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Ethan Petuchowski 2/27/15
@@ -13,12 +15,22 @@ import java.io.OutputStreamWriter;
 public class ByteArrayDTLog extends DTLog {
     public ByteArrayDTLog(Node node) {
         super(node);
-        writer = new OutputStreamWriter(byteArray);
+        out = byteArray;
+        indexLog();
     }
 
     ByteArrayOutputStream byteArray = new ByteArrayOutputStream();
 
-    public String getLogAsString() {
-        return byteArray.toString();
+    @Override protected Iterable<ByteBuffer> getLogSegments() {
+        return Collections.singletonList(ByteBuffer.wrap(byteArray.toByteArray()));
+    }
+
+    @Override protected void replaceLog(List<ByteBuffer> records) {
+        byteArray.reset();
+        for (ByteBuffer record : records) {
+            while (record.hasRemaining()) {
+                byteArray.write(record.get());
+            }
+        }
     }
 }
@@ -1,21 +1,18 @@
 package node.system;
 
-import messages.Message;
 import messages.NodeMessage;
 import node.ParticipantRecoveryStateMachine;
 import node.PeerReference;
 import node.base.Node;
 import system.network.Connection;
-import system.network.ObjectConnection;
+import system.network.NioConnection;
+import system.network.NioTransport;
 import util.Common;
 
-import java.io.EOFException;
 import java.io.File;
+import java.net.BindException;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
 
-import static util.Common.LOCALHOST;
 import static util.Common.TXN_MGR_ID;
 
 
@@ -24,55 +21,104 @@ import static util.Common.TXN_MGR_ID;
  */
 public class AsyncProcessNode extends Node {
 
-    NodeServer nodeServer;
+    NioTransport transport;
     AsyncLogger L;
+    /* false when it shares a JVM with other nodes, so self-destructing mustn't take them down too */
+    private final boolean inOwnProcess;
 
-    AsyncProcessNode(int systemListenPort, int myNodeID) {
-        super(myNodeID);
-        dtLog = new FileDTLog(new File(Common.LOG_DIR, String.valueOf(myNodeID)), this);
+    AsyncProcessNode(int systemListenPort, int myNodeID) throws IOException {
+        this(systemListenPort, myNodeID, true, 0);
+    }
+
+    /**
+     * @throws IOException only when not `inOwnProcess`, since a node in a process of its own
+     *                     exits if it can't boot
+     */
+    private AsyncProcessNode(int systemListenPort, int myNodeID, boolean inOwnProcess, int listenPort) throws IOException {
+        super(myNodeID, Common.NODE_MAILBOX);
+        this.inOwnProcess = inOwnProcess;
+        dtLog = new FileDTLog(
+                new File(Common.LOG_DIR, String.valueOf(myNodeID)),
+                this,
+                Common.LOG_GROUP_COMMIT_MILLISECONDS,
+                Common.LOG_PREALLOCATE);
+        if (Common.LOG_ASYNC_WRITER) {
+            dtLog.startWriterThread();
+        }
 
         System.out.println("Node "+getMyNodeID()+": log on startup:");
         System.out.println(dtLog.getLogAsString());
 
-        /* start local server */
-        nodeServer = new NodeServer();
+        /* start local server; peers that connect to it are added once they say who they are */
+        try {
+            transport = openTransport(listenPort);
+        }
+        catch (IOException e) {
+            System.err.println("Node "+getMyNodeID()+" couldn't open its server");
+            bootFailed(e);
+        }
         L = new AsyncLogger(getMyNodeID(), getListenPort());
-        new Thread(nodeServer).start();
 
         recoverFromDtLog();
 
         /* connect to System */
         try {
-            final Socket socket = new Socket(Common.LOCALHOST, systemListenPort);
-            txnMgrConn = new ObjectConnection(socket, TXN_MGR_ID);
+            txnMgrConn = transport.connect(systemListenPort, TXN_MGR_ID);
 
             /* tell the System my logical ID and listen port */
             // (doesn't increment sent-msgs count)
             txnMgrConn.sendMessage(new NodeMessage(getMyNodeID(), getListenPort()));
-            new Thread(new ConnectionListener(this, (ObjectConnection)txnMgrConn)).start();
         }
         catch (IOException e) {
             L.OG("couldn't establish connection to the System");
-            System.exit(Common.EXIT_FAILURE);
+            bootFailed(e);
         }
 
-        if (stateMachine instanceof ParticipantRecoveryStateMachine) {
-            ((ParticipantRecoveryStateMachine)stateMachine).sendDecisionRequestToCurrentPeer();
-        }
+        /* as the node, since peers' messages may already be arriving */
+        execute(() -> {
+            if (stateMachine instanceof ParticipantRecoveryStateMachine) {
+                ((ParticipantRecoveryStateMachine) stateMachine).requestDecision();
+            }
+        });
     }
 
-    int getListenPort() {
-        return nodeServer.getListenPort();
+    /**
+     * A node restarted in the same JVM listens where it did before, so peers that have its
+     * address in their logs can reach it again. The socket it listened on before may take
+     * a moment to close.
+     */
+    private NioTransport openTransport(int listenPort) throws IOException {
+        for (int attempt = 0; listenPort != 0 && attempt < 20; attempt++) {
+            try {
+                return new NioTransport("node-"+getMyNodeID(), this, (conn, hello) -> addConnection(conn), listenPort);
+            }
+            catch (BindException e) {
+                try {
+                    Thread.sleep(Common.TIMER_TICK_MILLISECONDS);
+                }
+                catch (InterruptedException ignored) {}
+            }
+        }
+        if (listenPort != 0) {
+            System.err.println("Node "+getMyNodeID()+" couldn't listen on port "+listenPort+" again, using another");
+        }
+        return new NioTransport("node-"+getMyNodeID(), this, (conn, hello) -> addConnection(conn));
     }
 
-    @Override public void addConnection(Connection connection) {
-        super.addConnection(connection);
-        if (connection == null) {
-            System.err.println("Connection is null");
-        }
-        else {
-            new Thread(new ConnectionListener(this, (ObjectConnection) connection)).start();
+    /**
+     * A node in its own process exits, as its process is no use without it. One sharing
+     * the JVM releases what it opened and leaves it to whoever booted it.
+     */
+    private void bootFailed(IOException cause) throws IOException {
+        if (inOwnProcess) {
+            System.exit(Common.EXIT_FAILURE);
         }
+        crash();
+        throw cause;
+    }
+
+    int getListenPort() {
+        return transport.getListenPort();
     }
 
     /**
@@ -86,8 +132,8 @@ public class AsyncProcessNode extends Node {
      * peer's server
      */
     @Override public Connection connectTo(PeerReference peerReference) throws IOException {
-        final ObjectConnection connection = new ObjectConnection(
-                new Socket(LOCALHOST, peerReference.getListeningPort()),
+        final NioConnection connection = transport.connect(
+                peerReference.getListeningPort(),
                 peerReference.getNodeID());
         addConnection(connection);
         connection.sendMessage(new NodeMessage(getMyNodeID(), getListenPort()));
@@ -100,46 +146,39 @@ public class AsyncProcessNode extends Node {
 
     @Override public void selfDestruct() {
         System.err.println("Node "+getMyNodeID()+" self destructing!");
-        System.exit(Common.EXIT_SUCCESS);
+        if (inOwnProcess) {
+            System.exit(Common.EXIT_SUCCESS);
+        }
+        crash();
     }
 
-    class NodeServer implements Runnable {
-
-        ServerSocket serverSocket;
-
-        int getListenPort() {
-            return serverSocket.getLocalPort();
+    /**
+     * Closes every connection, so peers and the transaction manager see the node go just
+     * as they would its process, and releases its log for the node that replaces it.
+     */
+    @Override public void crash() {
+        if (isCrashed()) {
+            return;
         }
-
-        NodeServer() {
-            serverSocket = Common.claimOpenPort();
+        super.crash();
+        cancelAllTimers();
+        if (transport != null) {
+            transport.shutdown();
         }
+        dtLog.close();
+    }
 
-        @Override public void run() {
-            while (true) {
-                try {
-                    Socket socket = serverSocket.accept();
-                    final ObjectConnection connection = new ObjectConnection(socket, Common.INVALID_ID);
-                    try {
-                        Message msg = connection.receiveMessage();
-                        if (msg instanceof NodeMessage) {
-                            connection.setReceiverID(((NodeMessage) msg).getNodeID());
-                            addConnection(connection);
-                        }
-                        else {
-                            L.OG("Conn didn't receive node msg, connection failed");
-                            connection.socket.close();
-                        }
-                    }
-                    catch (EOFException e) {
-                        L.OG("New conn received EOF");
-                    }
-                }
-                catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
+    /**
+     * boots a node in this JVM, alongside others, that talks to them and the transaction
+     * manager over loopback sockets all the same
+     *
+     * @param listenPort where the node listened before it crashed, or 0 on its first boot
+     * @throws IOException if it couldn't listen or reach the transaction manager, in which
+     *                     case whatever it had opened is closed again
+     */
+    public static AsyncProcessNode startInJvm(int systemListenPort, int nodeID, int listenPort) throws IOException {
+        System.out.println("Node "+nodeID+" booting in the transaction manager's JVM");
+        return new AsyncProcessNode(systemListenPort, nodeID, false, listenPort);
     }
 
     public static void main(String[] args) throws IOException {
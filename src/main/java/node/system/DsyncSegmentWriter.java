@@ -0,0 +1,54 @@
+package node.system;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes records at explicit positions into a pre-allocated segment through a channel
+ * opened with DSYNC, so each write returns once its data is on disk, and since the
+ * file's size never changes, no inode update has to go with it.
+ *
+ * Records are staged in a direct buffer, which the channel hands to the kernel without
+ * first copying it as it does heap buffers. Not thread-safe: `FileDTLog` serializes
+ * appends under its segment lock, so one staging buffer, grown on demand, serves them all.
+ */
+class DsyncSegmentWriter {
+    private static final int INITIAL_STAGING_BYTES = 4*1024;
+
+    private final FileChannel channel;
+    private long position;
+    private ByteBuffer staging = ByteBuffer.allocateDirect(INITIAL_STAGING_BYTES);
+
+    /**
+     * @param position where the next record goes, ie. the end of the segment's intact records
+     */
+    DsyncSegmentWriter(File segment, long position) throws IOException {
+        this.channel = FileChannel.open(
+                segment.toPath(),
+                StandardOpenOption.WRITE,
+                StandardOpenOption.DSYNC);
+        this.position = position;
+    }
+
+    /**
+     * returns once the record is durable
+     */
+    void write(ByteBuffer record) throws IOException {
+        if (record.remaining() > staging.capacity()) {
+            staging = ByteBuffer.allocateDirect(Integer.highestOneBit(record.remaining())*2);
+        }
+        staging.clear();
+        staging.put(record);
+        staging.flip();
+        while (staging.hasRemaining()) {
+            position += channel.write(staging, position);
+        }
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+}
@@ -1,44 +1,424 @@
 package node.system;
 
+import messages.Message;
+import messages.MessageCodec;
 import node.base.DTLog;
 import node.base.Node;
+import util.Common;
 
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Ethan Petuchowski 2/27/15
+ *
+ * The log is a directory of segment files plus a MANIFEST naming the live ones.
+ *
+ * Every record has a sequence number, counting up from the first record ever logged;
+ * each segment is named after the sequence number of its first record. Once the active
+ * segment would grow past `Common.LOG_SEGMENT_BYTES` a new one is started, and a
+ * checkpoint starts a fresh segment and reclaims every segment before it.
+ *
+ * Optionally, segments are pre-allocated to their full size as they're created, so
+ * appends overwrite zeros instead of growing the file. Without group commit, records
+ * then go through a `DsyncSegmentWriter`, which is durable on every append.
  */
 public class FileDTLog extends DTLog {
-    public FileDTLog(File file, Node node) {
+    public static final long NO_GROUP_COMMIT = -1;
+    static final String MANIFEST = "MANIFEST";
+    static final String SEGMENT_SUFFIX = ".seg";
+
+    public FileDTLog(File dir, Node node) {
+        this(dir, node, NO_GROUP_COMMIT);
+    }
+
+    /**
+     * @param maxBatchDelayMillis if non-negative, records are group-committed: each batch is
+     *                            fsync'd once, and gathers appenders for at most this long
+     */
+    public FileDTLog(File dir, Node node, long maxBatchDelayMillis) {
+        this(dir, node, maxBatchDelayMillis, false);
+    }
+
+    /**
+     * @param preallocate whether to fill each new segment with zeros up to `Common.LOG_SEGMENT_BYTES`
+     */
+    public FileDTLog(File dir, Node node, long maxBatchDelayMillis, boolean preallocate) {
         super(node);
-        this.file = file;
+        this.dir = dir;
+        this.maxBatchDelayMillis = maxBatchDelayMillis;
+        this.preallocate = preallocate;
         try {
-            if (!file.getParentFile().exists()) {
-                file.getParentFile().mkdirs();
-            }
-
-            if (!file.exists()) {
-                file.createNewFile();
+            if (!dir.exists()) {
+                dir.mkdirs();
             }
-            writer = new FileWriter(file, true);
+            openSegments();
         }
         catch (IOException e) {
             e.printStackTrace();
         }
+        indexLog();
     }
 
-    File file;
+    final File dir;
+    final long maxBatchDelayMillis;
+    final boolean preallocate;
+
+    /* base sequence numbers of the live segments, oldest first; guards the fields below */
+    final List<Long> segments = new ArrayList<>();
+    long nextSequenceNumber = 0;
+    long activeSegmentBytes = 0;
+    GroupCommitWriter groupCommitWriter = null;
+    DsyncSegmentWriter dsyncWriter = null;
+
+    File segmentFile(long baseSequenceNumber) {
+        return new File(dir, String.format("%020d%s", baseSequenceNumber, SEGMENT_SUFFIX));
+    }
 
-    @Override public String getLogAsString() {
+    /**
+     * reads the manifest, deletes segments it doesn't name, and discards any torn
+     * record at the end of the active segment so appends resume cleanly after it
+     */
+    private void openSegments() throws IOException {
+        File manifest = new File(dir, MANIFEST);
+        if (manifest.exists()) {
+            for (String line : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+                if (!line.trim().isEmpty()) {
+                    segments.add(Long.parseLong(line.trim()));
+                }
+            }
+        }
+        if (segments.isEmpty()) {
+            segments.add(0L);
+            writeManifest();
+        }
+
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.getName().endsWith(SEGMENT_SUFFIX) && !segments.contains(baseOf(f))) {
+                    f.delete();
+                }
+            }
+        }
+
+        long activeBase = segments.get(segments.size()-1);
+        File active = segmentFile(activeBase);
+        if (!active.exists()) {
+            createSegment(active);
+        }
+        ByteBuffer contents = ByteBuffer.wrap(Files.readAllBytes(active.toPath()));
+        long records = 0;
+        while (MessageCodec.decode(contents) != null) {
+            records++;
+        }
+        discardTornTail(active, contents);
+        nextSequenceNumber = activeBase+records;
+        activeSegmentBytes = contents.position();
+        openForAppend(active);
+    }
+
+    /**
+     * A pre-allocated segment keeps its size, so whatever follows its last intact record is
+     * zeroed instead; otherwise, once overwritten, records after a torn one in a partly
+     * persisted batch could resurface.
+     *
+     * @param contents the segment's bytes, positioned just after its last intact record
+     */
+    private void discardTornTail(File segment, ByteBuffer contents) throws IOException {
+        final int validBytes = contents.position();
+        boolean dirty = false;
+        for (int i = validBytes; !dirty && i < contents.limit(); i++) {
+            dirty = contents.get(i) != 0;
+        }
+        if (!dirty && (preallocate || validBytes == contents.limit())) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.WRITE)) {
+            if (preallocate) {
+                zeroFill(channel, validBytes, contents.limit());
+                channel.force(false);
+            }
+            else {
+                channel.truncate(validBytes);
+            }
+        }
+    }
+
+    private void createSegment(File segment) throws IOException {
+        if (!preallocate) {
+            segment.createNewFile();
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(
+                segment.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE))
+        {
+            zeroFill(channel, 0, Common.LOG_SEGMENT_BYTES);
+            channel.force(true);
+        }
+    }
+
+    /* writing real zeros, unlike setLength, allocates the blocks so appends needn't */
+    private static void zeroFill(FileChannel channel, long from, long to) throws IOException {
+        ByteBuffer zeros = ByteBuffer.allocateDirect(64*1024);
+        for (long position = from; position < to; ) {
+            zeros.clear();
+            zeros.limit((int) Math.min(zeros.capacity(), to-position));
+            position += channel.write(zeros, position);
+        }
+    }
+
+    private static long baseOf(File segment) {
+        String name = segment.getName();
         try {
-            return new String(Files.readAllBytes(file.toPath()));
+            return Long.parseLong(name.substring(0, name.length()-SEGMENT_SUFFIX.length()));
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * appends resume at `activeSegmentBytes`, which pre-allocated segments can't get from their size
+     */
+    private void openForAppend(File segment) throws IOException {
+        if (maxBatchDelayMillis >= 0) {
+            FileChannel channel;
+            if (preallocate) {
+                channel = FileChannel.open(segment.toPath(), StandardOpenOption.WRITE);
+                channel.position(activeSegmentBytes);
+            }
+            else {
+                channel = FileChannel.open(
+                        segment.toPath(),
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND);
+            }
+            groupCommitWriter = new GroupCommitWriter(channel, maxBatchDelayMillis);
+        }
+        else if (preallocate) {
+            dsyncWriter = new DsyncSegmentWriter(segment, activeSegmentBytes);
+        }
+        else {
+            out = new FileOutputStream(segment, true);
+        }
+    }
+
+    @Override public void close() {
+        super.close();
+        synchronized (segments) {
+            try {
+                closeActiveSegment();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void closeActiveSegment() throws IOException {
+        if (groupCommitWriter != null) {
+            groupCommitWriter.close();
+        }
+        else if (dsyncWriter != null) {
+            dsyncWriter.close();
+        }
+        else if (out != null) {
+            out.close();
+        }
+    }
+
+    /**
+     * the manifest is replaced by rename, which is what makes segment changes crash-atomic
+     */
+    private void writeManifest() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (long base : segments) {
+            sb.append(base).append('\n');
+        }
+        File tmp = new File(dir, MANIFEST+".tmp");
+        try (FileChannel channel = FileChannel.open(
+                tmp.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            channel.write(ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8)));
+            channel.force(true);
+        }
+        Files.move(
+                tmp.toPath(),
+                new File(dir, MANIFEST).toPath(),
+                StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void rollSegment() throws IOException {
+        closeActiveSegment();
+        File next = segmentFile(nextSequenceNumber);
+        createSegment(next);
+        segments.add(nextSequenceNumber);
+        writeManifest();
+        activeSegmentBytes = 0;
+        openForAppend(next);
+    }
+
+    /**
+     * Under group commit, every record is enqueued before the batch is committed, so they
+     * share one fsync. Records that had to wait for the active segment to roll are
+     * committed before it's closed.
+     */
+    @Override protected void appendAll(List<ByteBuffer> records) throws IOException {
+        GroupCommitWriter writer = null;
+        GroupCommitWriter.Batch batch = null;
+        synchronized (segments) {
+            for (ByteBuffer record : records) {
+                if (activeSegmentBytes > 0 && activeSegmentBytes+record.remaining() > Common.LOG_SEGMENT_BYTES) {
+                    if (writer != null) {
+                        writer.commit(batch);
+                        writer = null;
+                    }
+                    rollSegment();
+                }
+                activeSegmentBytes += record.remaining();
+                nextSequenceNumber++;
+                if (dsyncWriter != null) {
+                    dsyncWriter.write(record);
+                }
+                else if (groupCommitWriter == null) {
+                    super.append(record);
+                }
+                else {
+                    writer = groupCommitWriter;
+                    batch = writer.enqueue(record);
+                }
+            }
+        }
+        if (writer != null) {
+            writer.commit(batch);
+        }
+    }
+
+    /**
+     * Segments are mapped one at a time as the caller reaches them, so reading the log
+     * (eg. during recovery) never copies it onto the heap.
+     */
+    @Override protected Iterable<ByteBuffer> getLogSegments() {
+        final List<Long> bases;
+        synchronized (segments) {
+            bases = new ArrayList<>(segments);
+        }
+        return () -> bases.stream().map(this::mapSegment).iterator();
+    }
+
+    @Override protected Iterable<ByteBuffer> getLogSegmentsNewestFirst() {
+        final List<Long> bases;
+        synchronized (segments) {
+            bases = new ArrayList<>(segments);
+        }
+        Collections.reverse(bases);
+        return () -> bases.stream().map(this::mapSegment).iterator();
+    }
+
+    private ByteBuffer mapSegment(long base) {
+        try (FileChannel channel = FileChannel.open(segmentFile(base).toPath(), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
         }
         catch (IOException e) {
             e.printStackTrace();
-            return null;
+            return ByteBuffer.allocate(0);
+        }
+    }
+
+    /**
+     * @return the records from the given sequence number onwards, reading only
+     *         the segments that can contain them
+     */
+    public Collection<Message> getLoggedMessagesFrom(long sequenceNumber) {
+        List<Message> messages = new ArrayList<>();
+        List<Long> bases;
+        synchronized (segments) {
+            bases = new ArrayList<>(segments);
+        }
+        int first = 0;
+        while (first+1 < bases.size() && bases.get(first+1) <= sequenceNumber) {
+            first++;
+        }
+        for (int i = first; i < bases.size(); i++) {
+            ByteBuffer segment = mapSegment(bases.get(i));
+            long seq = bases.get(i);
+            Message message;
+            while ((message = MessageCodec.decode(segment)) != null) {
+                if (seq++ >= sequenceNumber) {
+                    messages.add(message);
+                }
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * @return the sequence number the next appended record will get
+     */
+    public long getNextSequenceNumber() {
+        synchronized (segments) {
+            return nextSequenceNumber;
+        }
+    }
+
+    /**
+     * Starts a new segment holding just the checkpoint and the records carried past it,
+     * makes it the only live segment in the manifest, then deletes the segments it
+     * supersedes. A crash before the manifest is replaced leaves the old log intact; the
+     * orphaned segment is removed on reopen.
+     *
+     * While the active segment is still empty, the new segment would take its name, so
+     * the checkpoint skips a sequence number rather than overwrite a live segment.
+     */
+    @Override protected void replaceLog(List<ByteBuffer> records) throws IOException {
+        synchronized (segments) {
+            closeActiveSegment();
+            long base = nextSequenceNumber;
+            if (segments.contains(base)) {
+                base++;
+            }
+            File checkpointSegment = segmentFile(base);
+            /* not live, so at most an orphan of a checkpoint that crashed before its manifest */
+            Files.deleteIfExists(checkpointSegment.toPath());
+            createSegment(checkpointSegment);
+            try (FileChannel channel = FileChannel.open(checkpointSegment.toPath(), StandardOpenOption.WRITE)) {
+                activeSegmentBytes = 0;
+                for (ByteBuffer record : records) {
+                    activeSegmentBytes += record.remaining();
+                    while (record.hasRemaining()) {
+                        channel.write(record);
+                    }
+                }
+                channel.force(true);
+            }
+
+            List<Long> superseded = new ArrayList<>(segments);
+            segments.clear();
+            segments.add(base);
+            writeManifest();
+            nextSequenceNumber = base+records.size();
+            for (long old : superseded) {
+                segmentFile(old).delete();
+            }
+            openForAppend(checkpointSegment);
         }
     }
 }
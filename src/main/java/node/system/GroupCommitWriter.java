@@ -0,0 +1,159 @@
+package node.system;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Collects records from concurrent appenders into one buffer and makes each
+ * batch durable with a single `FileChannel.force`.
+ *
+ * The first appender to commit a batch becomes its leader: it waits up to
+ * `maxBatchDelayMillis` for others to join (and for the previous batch to
+ * finish), then writes and forces the whole batch. Everyone else just waits
+ * until the batch they joined is on disk.
+ */
+public class GroupCommitWriter {
+
+    private final FileChannel channel;
+    private final long maxBatchDelayMillis;
+
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private Batch openBatch = new Batch(0);
+    private boolean forcing = false;
+
+    /**
+     * one group of records forced together, and how that went; each has its own outcome,
+     * so an appender that wakes late still learns how its own batch fared
+     */
+    public static final class Batch {
+        final long number;
+        boolean hasLeader = false;
+        boolean done = false;
+        IOException failure = null;
+
+        Batch(long number) {
+            this.number = number;
+        }
+    }
+
+    public GroupCommitWriter(FileChannel channel, long maxBatchDelayMillis) {
+        this.channel = channel;
+        this.maxBatchDelayMillis = maxBatchDelayMillis;
+    }
+
+    /**
+     * blocks until `record` (and everything appended before it) has been forced to disk
+     */
+    public void append(ByteBuffer record) throws IOException {
+        commit(enqueue(record));
+    }
+
+    /**
+     * Adds the record to the open batch without waiting. This fixes the record's
+     * position in the file; it becomes durable once `commit` returns.
+     *
+     * @return the batch the record joined
+     */
+    public synchronized Batch enqueue(ByteBuffer record) {
+        while (record.hasRemaining()) {
+            pending.write(record.get());
+        }
+        return openBatch;
+    }
+
+    /**
+     * blocks until the given batch has been forced to disk, leading it if nobody else is
+     */
+    public void commit(Batch batch) throws IOException {
+        final ByteBuffer toWrite;
+        boolean interrupted = false;
+        synchronized (this) {
+            if (batch != openBatch || batch.hasLeader) {
+                awaitDurable(batch);
+                return;
+            }
+            batch.hasLeader = true;
+
+            /* give concurrent appenders a chance to join this batch */
+            final long deadline = System.currentTimeMillis()+maxBatchDelayMillis;
+            long remaining = maxBatchDelayMillis;
+            while (remaining > 0 || forcing) {
+                interrupted |= waitUninterruptibly(forcing ? 0 : remaining);
+                remaining = deadline-System.currentTimeMillis();
+            }
+
+            toWrite = ByteBuffer.wrap(pending.toByteArray());
+            pending = new ByteArrayOutputStream();
+            openBatch = new Batch(batch.number+1);
+            forcing = true;
+        }
+
+        IOException error = null;
+        try {
+            while (toWrite.hasRemaining()) {
+                channel.write(toWrite);
+            }
+            channel.force(false);
+        }
+        catch (IOException e) {
+            error = e;
+        }
+
+        synchronized (this) {
+            batch.failure = error;
+            batch.done = true;
+            forcing = false;
+            notifyAll();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Waits for every enqueued record to be committed by its appender, then closes the
+     * channel. The caller must ensure nothing new is enqueued meanwhile.
+     */
+    public synchronized void close() throws IOException {
+        boolean interrupted = false;
+        while (pending.size() > 0 || openBatch.hasLeader || forcing) {
+            interrupted |= waitUninterruptibly(0);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    private void awaitDurable(Batch batch) throws IOException {
+        boolean interrupted = false;
+        while (!batch.done) {
+            interrupted |= waitUninterruptibly(0);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (batch.failure != null) {
+            throw new IOException("Group commit of batch "+batch.number+" failed", batch.failure);
+        }
+    }
+
+    /**
+     * @return true if the wait was cut short by an interrupt, which the caller
+     *         must re-assert once it stops waiting
+     */
+    private boolean waitUninterruptibly(long millis) {
+        try {
+            wait(millis);
+            return false;
+        }
+        catch (InterruptedException e) {
+            return true;
+        }
+    }
+}
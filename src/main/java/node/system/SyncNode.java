@@ -8,6 +8,7 @@ import system.SyncTxnMgr;
 import system.network.Connection;
 import system.network.QueueConnection;
 import system.network.QueueSocket;
+import util.HashedWheelTimer;
 
 /**
  * Ethan Petuchowski 2/28/15
@@ -84,6 +85,16 @@ public class SyncNode extends Node {
         /* nothing */
     }
 
+    /**
+     * Ticked by hand, so a sync node runs the task straight away rather than from a timer.
+     *
+     * @return null, as there is nothing left to cancel
+     */
+    @Override public HashedWheelTimer.Timeout schedule(Runnable task, long delayMillis) {
+        execute(task);
+        return null;
+    }
+
     @Override public void selfDestruct() {
         System.err.println("This is where I WOULD self-destruct.");
     }
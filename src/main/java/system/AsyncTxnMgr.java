@@ -6,6 +6,7 @@ import messages.DelayMessage;
 import messages.KillSig;
 import messages.Message;
 import messages.PeerTimeout;
+import messages.vote_req.VoteRequest;
 import node.system.AsyncLogger;
 import node.system.AsyncProcessNode;
 import system.failures.DeathAfter;
@@ -15,7 +16,11 @@ import util.Common;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -27,6 +32,7 @@ import java.util.stream.Collectors;
 public class AsyncTxnMgr extends TransactionManager {
     public AsyncTxnMgr(int numNodes) {
         super(numNodes);
+        startInJvmNodes();
         waitForAllNodesToConnect();
         dubCoordinator(nodes.get(0).getNodeID());
         nodesConnected.lock();
@@ -36,6 +42,18 @@ public class AsyncTxnMgr extends TransactionManager {
         new Thread(console).start();
     }
 
+    /**
+     * In-JVM nodes start once `nodes` is set, since the first thing each does is connect
+     * and be looked up in it. A process takes long enough to start that this never came up.
+     */
+    private void startInJvmNodes() {
+        for (ManagerNodeRef node : getNodes()) {
+            if (node instanceof InJvmManagerNodeRef) {
+                ((InJvmManagerNodeRef) node).start();
+            }
+        }
+    }
+
     private void waitForAllNodesToConnect() {
         while (getNumConnectedNodes() < getNodes().size()) {
             try {
@@ -55,15 +73,12 @@ public class AsyncTxnMgr extends TransactionManager {
     final Condition allNodesConnected = nodesConnected.newCondition();
     final Condition coordinatorChosen = nodesConnected.newCondition();
 
-    final Lock transactionLock = new ReentrantLock();
-    final Condition transactionComplete = transactionLock.newCondition();
-    private Message transactionResult = null;
+    /* requests sent straight to the coordinator, by transaction ID, until their decision comes back */
+    private final Map<Integer, CompletableFuture<Message>> pendingDecisions = new ConcurrentHashMap<>();
 
     protected TxnMgrServer mgrServer;
     protected AsyncLogger L;
 
-    protected int transactionID = 0;
-
     protected CommandConsole console;
 
 
@@ -71,9 +86,12 @@ public class AsyncTxnMgr extends TransactionManager {
         return nodes.stream().filter(n -> n.getConn() != null).count();
     }
 
-    public void processCommand(ConsoleCommand command) {
+    /**
+     * @return the decision on the command's vote request; already complete (with null)
+     *         for commands that aren't transactions
+     */
+    public CompletableFuture<Message> processCommand(ConsoleCommand command) {
 
-        transactionResult = null;
         /**
          * Actually INSTEAD of passing the failures to the node as a commandline param
          * we should send it to the node as a message
@@ -107,16 +125,33 @@ public class AsyncTxnMgr extends TransactionManager {
                 KillSig killSig = (KillSig) command.getVoteRequest();
                 ManagerNodeRef nodeToKill = remoteNodeWithID(killSig.getNodeID());
                 restartNode(nodeToKill);
-                break;
+                return CompletableFuture.completedFuture(null);
             case LIST:
                 broadcast(command.getVoteRequest());
-                break;
+                return CompletableFuture.completedFuture(null);
             default:
                 addPeerSet(command);
-                processRequest(command.getVoteRequest());
-                break;
+                return startTransaction(command.getVoteRequest());
         }
+    }
 
+    /**
+     * sends the request to the coordinator on its own, bypassing the batcher
+     */
+    public CompletableFuture<Message> startTransaction(VoteRequest voteRequest) {
+        CompletableFuture<Message> decision = new CompletableFuture<>();
+        pendingDecisions.put(voteRequest.getTransactionID(), decision);
+        processRequest(voteRequest);
+        return decision;
+    }
+
+    /**
+     * @return the transactions sent to the coordinator that haven't been decided yet
+     */
+    public Collection<Integer> getUndecidedTransactionIDs() {
+        Collection<Integer> undecided = new ArrayList<>(pendingDecisions.keySet());
+        undecided.addAll(batcher.getTransactionIDsInFlight());
+        return undecided;
     }
 
     /**
@@ -130,6 +165,11 @@ public class AsyncTxnMgr extends TransactionManager {
     }
 
     private void restartNode(ManagerNodeRef nodeToKill) {
+        nodeRestarted(nodeToKill.getNodeID());
+        if (nodeToKill instanceof InJvmManagerNodeRef) {
+            ((InJvmManagerNodeRef) nodeToKill).restart();
+            return;
+        }
         nodeToKill.killNode();
         createNode(nodeToKill.getNodeID());
     }
@@ -140,9 +180,26 @@ public class AsyncTxnMgr extends TransactionManager {
     }
 
     public ManagerNodeRef createNode(int nodeID) {
+        if (Common.NODES_IN_JVM) {
+            InJvmManagerNodeRef node = new InJvmManagerNodeRef(nodeID, mgrServer.getListenPort());
+            if (nodes != null) {
+                node.start();
+            }
+            return node;
+        }
 
         final List<String> commandLine = Arrays.asList(
-                "java", "-cp", "target/classes", AsyncProcessNode.class.getCanonicalName(),
+                "java", "-cp", "target/classes",
+                "-D"+Common.GROUP_COMMIT_PROPERTY+"="+Common.LOG_GROUP_COMMIT_MILLISECONDS,
+                "-D"+Common.PREALLOCATE_PROPERTY+"="+Common.LOG_PREALLOCATE,
+                "-D"+Common.ASYNC_WRITER_PROPERTY+"="+Common.LOG_ASYNC_WRITER,
+                "-D"+Common.THREAD_MODE_PROPERTY+"="+Common.THREAD_MODE,
+                "-D"+Common.MAILBOX_PROPERTY+"="+Common.NODE_MAILBOX,
+                "-D"+Common.MAX_IN_FLIGHT_PROPERTY+"="+Common.MAX_TRANSACTIONS_IN_FLIGHT,
+                "-D"+Common.RECOVERY_PARALLEL_PROPERTY+"="+Common.RECOVERY_PARALLEL,
+                "-D"+Common.RECOVERY_BACKOFF_PROPERTY+"="+Common.RECOVERY_BACKOFF_MILLISECONDS,
+                "-D"+Common.RECOVERY_MAX_BACKOFF_PROPERTY+"="+Common.RECOVERY_MAX_BACKOFF_MILLISECONDS,
+                AsyncProcessNode.class.getCanonicalName(),
                 String.valueOf(nodeID),
                 String.valueOf(mgrServer.getListenPort()));
 
@@ -186,16 +243,28 @@ public class AsyncTxnMgr extends TransactionManager {
     }
 
     private void startServer() {
-        mgrServer = new TxnMgrServer(this);
+        try {
+            mgrServer = new TxnMgrServer(this);
+        }
+        catch (IOException e) {
+            System.err.println("TxnMgr couldn't open its server");
+            System.exit(Common.EXIT_FAILURE);
+        }
         L = new AsyncLogger(Common.TXN_MGR_ID, mgrServer.getListenPort());
-        new Thread(mgrServer).start();
     }
 
     public synchronized void receiveResponse(Message response) {
         switch (response.getCommand()) {
             case COMMIT:
             case ABORT:
-                signalSystem(response);
+                /* under the ID the nodes logged it with, which for a batch isn't its members' */
+                decisions.record(response);
+                if (!batcher.decided(response)) {
+                    CompletableFuture<Message> decision = pendingDecisions.remove(response.getTransactionID());
+                    if (decision != null) {
+                        decision.complete(response);
+                    }
+                }
                 break;
 
             case TIMEOUT:
@@ -215,7 +284,16 @@ public class AsyncTxnMgr extends TransactionManager {
     }
 
     protected void reviveNode(int deadID) {
-        if (((AsyncManagerNodeRef)getNodeByID(deadID)).isAlive()) {
+        final ManagerNodeRef deadNode = getNodeByID(deadID);
+        if (((AsyncManagerNodeRef) deadNode).isAlive()) {
+            return;
+        }
+        /* it boots as a participant, so if it was the coordinator it's dubbed again */
+        nodeRestarted(deadID);
+        if (deadNode instanceof InJvmManagerNodeRef) {
+            /* revived in place, so the list and the coordinator keep pointing at it */
+            L.OG("Reviving node "+deadID+" in this JVM");
+            ((InJvmManagerNodeRef) deadNode).restart();
             return;
         }
         nodes = getNodes().stream()
@@ -229,27 +307,4 @@ public class AsyncTxnMgr extends TransactionManager {
         }
     }
 
-    private void signalSystem(Message response) {
-        /* tell the `AsynchronousSystem` the result */
-        transactionLock.lock();
-        setTransactionResult(response);
-        transactionComplete.signalAll();
-        transactionLock.unlock();
-    }
-
-    public Message getTransactionResult() {
-        return transactionResult;
-    }
-
-    public void setTransactionResult(Message transactionResult) {
-        this.transactionResult = transactionResult;
-    }
-
-    public int getTransactionID() {
-        return transactionID;
-    }
-
-    public int getNextTransactionID() {
-        return ++transactionID;
-    }
 }
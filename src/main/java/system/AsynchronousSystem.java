@@ -6,6 +6,7 @@ import messages.vote_req.VoteRequest;
 import util.Common;
 
 import java.io.File;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Ethan Petuchowski 3/2/15
@@ -22,8 +23,8 @@ public class AsynchronousSystem extends DistributedSystem {
         File logDir = new File(Common.LOG_DIR);
         if (logDir.exists()) {
             if (logDir.isDirectory()) {
-                for (File logFile : logDir.listFiles()) {
-                    logFile.delete();
+                for (File nodeLog : logDir.listFiles()) {
+                    deleteRecursively(nodeLog);
                 }
             } else {
                 System.err.println("Log dir not directory");
@@ -32,52 +33,31 @@ public class AsynchronousSystem extends DistributedSystem {
         }
     }
 
+    /* each node's log is a directory of segments */
+    static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
     public Message processCommandToCompletion(ConsoleCommand command) {
-        txnMgr.processCommand(command);
-        return waitForResponse();
+        return txnMgr.processCommand(command).join();
     }
 
     @Override Message processRequestToCompletion(VoteRequest voteRequest) {
-        txnMgr.processRequest(voteRequest);
-        return waitForResponse();
+        return txnMgr.startTransaction(voteRequest).join();
     }
 
-    private Message waitForResponse() {
-        try {
-            /**
-             * Acquires the lock *unless* the current thread is `interrupted`.
-             * Acquires the lock if it is available and returns immediately.
-             *
-             * If the lock is not available then the current thread becomes disabled for
-             *      thread scheduling purposes and lies dormant until one of two things happens:
-             *
-             *          1. The lock is acquired by the current thread; or
-             *
-             *          2. Some other thread interrupts the current thread,
-             *              and interruption of lock acquisition is supported.
-             */
-            txnMgr.transactionLock.lockInterruptibly();
-
-            /**
-             * Causes the current thread to wait until it is signalled or interrupted.
-             *
-             * The lock associated with this Condition is atomically released
-             *      and the current thread becomes disabled for thread scheduling purposes
-             *      and lies dormant until some other thread invokes the signalAll()
-             *      method for this Condition or some other thread interrupts the current thread.
-             *
-             * Before this method can return the current thread re-acquires the lock associated
-             *  with this condition, so when the thread returns it is guaranteed to hold this lock.
-             */
-            txnMgr.transactionComplete.await();
-        }
-        catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-        finally {
-            txnMgr.transactionLock.unlock();
-        }
-        return txnMgr.getTransactionResult();
+    /**
+     * @return completed with the request's COMMIT or ABORT; the request may be batched
+     *         with others submitted around the same time
+     */
+    public CompletableFuture<Message> submit(VoteRequest voteRequest) {
+        return txnMgr.submit(voteRequest);
     }
 
     void killAllNodes() {
@@ -0,0 +1,44 @@
+package system;
+
+import messages.Message;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The outcomes of the most recent transactions, by transaction ID, so the
+ * `TransactionManager` can answer a recovering node's `DecisionRequest` itself.
+ *
+ * Holds at most `capacity` decisions; once full, recording a new one evicts the oldest.
+ */
+public class DecisionCache {
+
+    private final Map<Integer, Message> decisions;
+
+    public DecisionCache(final int capacity) {
+        decisions = new LinkedHashMap<Integer, Message>(16, 0.75f, false) {
+            @Override protected boolean removeEldestEntry(Map.Entry<Integer, Message> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @param decision a COMMIT or ABORT
+     */
+    public synchronized void record(Message decision) {
+        decisions.put(decision.getTransactionID(), decision);
+    }
+
+    /**
+     * @return the COMMIT or ABORT for the transaction, or null if it was never recorded
+     *         or has been evicted
+     */
+    public synchronized Message get(int transactionID) {
+        return decisions.get(transactionID);
+    }
+
+    public synchronized int size() {
+        return decisions.size();
+    }
+}
@@ -0,0 +1,124 @@
+package system;
+
+import node.system.AsyncProcessNode;
+import util.Common;
+import util.NodeThreads;
+
+import java.io.IOException;
+
+/**
+ * A node run in the transaction manager's own JVM rather than a process of its own.
+ *
+ * Killing it crashes the node in place, closing its sockets and log the way its process
+ * dying would; restarting it boots a fresh node from the same log in milliseconds, on
+ * code the JIT has already warmed up.
+ */
+public class InJvmManagerNodeRef extends AsyncManagerNodeRef {
+
+    /* boots tried, a timeout apart, before the node is given up on until it's next revived */
+    static final int BOOT_ATTEMPTS = 3;
+
+    private final int systemListenPort;
+    private volatile AsyncProcessNode node = null;
+    private volatile boolean started = false;
+    /* bumped on each kill, so a node that finishes booting after it was killed is crashed at once */
+    private int generation = 0;     // guarded by this
+
+    public InJvmManagerNodeRef(int nodeID, int systemListenPort) {
+        super(nodeID, null);
+        this.systemListenPort = systemListenPort;
+    }
+
+    /**
+     * boots the node on a thread of its own, as a new process would, so the caller
+     * needn't wait for it to recover from its log and connect. A restarted node listens
+     * on the port it had, where its peers' logs say to find it.
+     */
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        final int booting = generation;
+        final int previousPort = getListenPort();
+        NodeThreads.start(() -> boot(booting, previousPort), "boot-node-"+getNodeID());
+    }
+
+    /**
+     * If the node can't boot, it's tried again, unless it's been killed meanwhile. Once
+     * every attempt has failed the node counts as dead, so it's booted afresh if revived.
+     */
+    private void boot(int booting, int previousPort) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                booted(booting, AsyncProcessNode.startInJvm(systemListenPort, getNodeID(), previousPort));
+                return;
+            }
+            catch (IOException | RuntimeException e) {
+                System.err.println("Node "+getNodeID()+" failed to boot (attempt "+attempt+"): "+e);
+                if (attempt == BOOT_ATTEMPTS || !isCurrent(booting)) {
+                    gaveUp(booting);
+                    return;
+                }
+            }
+            try {
+                Thread.sleep(Common.TIMEOUT_MILLISECONDS());
+            }
+            catch (InterruptedException e) {
+                gaveUp(booting);
+                return;
+            }
+        }
+    }
+
+    private synchronized boolean isCurrent(int bootGeneration) {
+        return bootGeneration == generation;
+    }
+
+    private synchronized void booted(int bootedGeneration, AsyncProcessNode booted) {
+        if (bootedGeneration != generation) {
+            booted.crash();
+            return;
+        }
+        node = booted;
+    }
+
+    private synchronized void gaveUp(int bootGeneration) {
+        if (bootGeneration == generation) {
+            started = false;
+        }
+    }
+
+    /**
+     * crashes the node if it is up, then boots its replacement
+     */
+    public synchronized void restart() {
+        killNode();
+        start();
+    }
+
+    /**
+     * @return the node, or null while it boots or after it was killed
+     */
+    public AsyncProcessNode getNode() {
+        return node;
+    }
+
+    @Override public synchronized void killNode() {
+        AsyncProcessNode current = node;
+        if (current != null) {
+            current.crash();
+        }
+        node = null;
+        started = false;
+        generation++;
+    }
+
+    /**
+     * @return true while the node is booting, too, so it isn't revived twice
+     */
+    @Override public boolean isAlive() {
+        AsyncProcessNode current = node;
+        return started && (current == null || !current.isCrashed());
+    }
+}
@@ -0,0 +1,139 @@
+package system;
+
+import messages.CommitRequest;
+import messages.Message;
+import messages.vote_req.BatchRequest;
+import messages.vote_req.VoteRequest;
+import util.Common;
+import util.HashedWheelTimer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Coalesces requests submitted to the `TransactionManager` into `BatchRequest`s, so a
+ * stream of small writes costs one 3PC round per batch instead of one per write.
+ *
+ * A batch goes to the coordinator once it holds `maxBatchSize` requests, or once its
+ * first request has waited `lingerMillis`. Each submitter is told the outcome of its own
+ * request: when a batch commits, every request in it committed. A batch aborts if any
+ * one of its requests would, so its requests are then sent again one at a time, and
+ * each gets the outcome it would have had on its own.
+ */
+public class RequestBatcher {
+
+    private static final HashedWheelTimer LINGER_TIMER = new HashedWheelTimer(Common.TIMER_TICK_MILLISECONDS, 64);
+
+    private final TransactionManager txnMgr;
+    private final int maxBatchSize;
+    private final long lingerMillis;
+
+    /* guarded by this */
+    private List<VoteRequest> pending = new ArrayList<>();
+    private HashedWheelTimer.Timeout lingerTimeout = null;
+
+    /* what was sent to the coordinator and not yet decided, by the transaction ID it was sent under */
+    private final Map<Integer, List<VoteRequest>> batchesInFlight = new HashMap<>();
+    private final Map<Integer, Consumer<Message>> listeners = new HashMap<>();
+
+    /**
+     * @param lingerMillis non-positive means a partial batch waits for an explicit `flush`
+     */
+    public RequestBatcher(TransactionManager txnMgr, int maxBatchSize, long lingerMillis) {
+        this.txnMgr = txnMgr;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.lingerMillis = lingerMillis;
+    }
+
+    /**
+     * @param onDecision given the COMMIT or ABORT for `request`, under its own transaction ID
+     */
+    public synchronized void submit(VoteRequest request, Consumer<Message> onDecision) {
+        listeners.put(request.getTransactionID(), onDecision);
+        pending.add(request);
+        if (pending.size() >= maxBatchSize) {
+            flush();
+        }
+        else if (pending.size() == 1 && lingerMillis > 0) {
+            lingerTimeout = LINGER_TIMER.schedule(this::flush, lingerMillis);
+        }
+    }
+
+    /**
+     * sends whatever is waiting to be batched
+     */
+    public synchronized void flush() {
+        if (lingerTimeout != null) {
+            lingerTimeout.cancel();
+            lingerTimeout = null;
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<VoteRequest> batch = pending;
+        pending = new ArrayList<>();
+
+        if (batch.size() == 1) {
+            send(batch.get(0), batch);
+        }
+        else {
+            /* the batch runs under its own ID; its requests keep theirs for their listeners */
+            VoteRequest first = batch.get(0);
+            send(new BatchRequest(batch, txnMgr.getNextTransactionID(), first.getPeerSet()), batch);
+        }
+    }
+
+    private void send(VoteRequest request, List<VoteRequest> members) {
+        batchesInFlight.put(request.getTransactionID(), members);
+        txnMgr.sendRequest(request);
+    }
+
+    /**
+     * @return false if the decision wasn't for anything sent from here
+     */
+    public boolean decided(Message decision) {
+        List<Runnable> notifications = new ArrayList<>();
+        synchronized (this) {
+            List<VoteRequest> members = batchesInFlight.remove(decision.getTransactionID());
+            if (members == null) {
+                return false;
+            }
+            if (members.size() == 1) {
+                Consumer<Message> listener = listeners.remove(decision.getTransactionID());
+                notifications.add(() -> listener.accept(decision));
+            }
+            else if (decision.getCommand() == Message.Command.COMMIT) {
+                for (VoteRequest member : members) {
+                    Consumer<Message> listener = listeners.remove(member.getTransactionID());
+                    notifications.add(() -> listener.accept(new CommitRequest(member.getTransactionID())));
+                }
+            }
+            else {
+                System.out.println("TxnMgr retrying the "+members.size()+" requests of aborted batch "+decision.getTransactionID()+" one at a time");
+                for (VoteRequest member : members) {
+                    send(member, Collections.singletonList(member));
+                }
+            }
+        }
+
+        /* outside the lock, so a listener may submit again */
+        notifications.forEach(Runnable::run);
+        return true;
+    }
+
+    public synchronized int getRequestsAwaitingDecision() {
+        return listeners.size();
+    }
+
+    /**
+     * @return the IDs of the batches and lone requests sent and not yet decided
+     */
+    public synchronized Collection<Integer> getTransactionIDsInFlight() {
+        return new ArrayList<>(batchesInFlight.keySet());
+    }
+}
@@ -1,5 +1,6 @@
 package system;
 
+import messages.DecisionRequest;
 import messages.Message;
 import system.network.QueueSocket;
 import util.Common;
@@ -9,6 +10,7 @@ import java.util.List;
 
 import static messages.Message.Command.ABORT;
 import static messages.Message.Command.COMMIT;
+import static messages.Message.Command.DECISION_REQUEST;
 
 /**
  * Ethan Petuchowski 2/28/15
@@ -19,6 +21,11 @@ public class SyncTxnMgr extends TransactionManager {
         dubCoordinator(1);
     }
 
+    /* ticked by hand, so partial batches go out on `flushRequests` rather than on a timer */
+    @Override protected long batchLingerMillis() {
+        return 0;
+    }
+
     @Override public List<ManagerNodeRef> createNodes(int numNodes) {
         List<ManagerNodeRef> list = new ArrayList<>();
         for (int i = 1; i <= numNodes ; i++) {
@@ -30,14 +37,21 @@ public class SyncTxnMgr extends TransactionManager {
 
 
     /**
-     * @return return COMMIT, or ABORT if that was received, otw NULL
+     * @return return COMMIT, or ABORT if that was received, otw NULL; a decision on
+     *         something `submit`ted goes to its submitter instead
      */
     public Message tick() {
         for (ManagerNodeRef nodeRef : nodes) {
             Message message = nodeRef.receiveMessage();
             if (message != null) {
                 if (message.getCommand() == COMMIT || message.getCommand() == ABORT) {
-                    return message;
+                    decisions.record(message);
+                    if (!batcher.decided(message)) {
+                        return message;
+                    }
+                }
+                else if (message.getCommand() == DECISION_REQUEST) {
+                    answerDecisionRequest(nodeRef.getNodeID(), (DecisionRequest) message);
                 }
             }
         }
@@ -4,6 +4,10 @@ import messages.Message;
 import messages.PeerTimeout;
 import messages.vote_req.VoteRequest;
 
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * Ethan Petuchowski 2/28/15
  *
@@ -35,4 +39,25 @@ public class SynchronousSystem extends DistributedSystem {
         System.err.println("Did not complete in "+MAX_TICKS+" ticks");
         return new PeerTimeout(-1);
     }
+
+    /**
+     * @return each request's decision, by its transaction ID, once all have one
+     */
+    Map<Integer, Message> submitToCompletion(List<VoteRequest> voteRequests) {
+        Map<Integer, Message> decisions = new HashMap<>();
+        for (VoteRequest request : voteRequests) {
+            txnMgr.submit(request, decision -> decisions.put(decision.getTransactionID(), decision));
+        }
+        txnMgr.flushRequests();
+        for (int i = 0; i < MAX_TICKS && decisions.size() < voteRequests.size(); i++) {
+            txnMgr.tick();
+            for (ManagerNodeRef node : txnMgr.getNodes()) {
+                ((SyncManagerNodeRef) node).tick();
+            }
+        }
+        if (decisions.size() < voteRequests.size()) {
+            System.err.println("Did not complete in "+MAX_TICKS+" ticks");
+        }
+        return decisions;
+    }
 }
@@ -1,14 +1,20 @@
 package system;
 
+import messages.DecisionRequest;
 import messages.DubCoordinatorMessage;
 import messages.Message;
+import messages.UncertainResponse;
 import messages.vote_req.VoteRequest;
 import node.PeerReference;
 import system.network.Network;
+import util.Common;
 
 import java.io.IOException;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 /**
@@ -21,10 +27,19 @@ public abstract class TransactionManager {
     protected List<ManagerNodeRef> nodes;
     protected Network network;
     private ManagerNodeRef coordinator;
-    protected int currentTxnID;
+    /* the coordinator last sent a DubCoordinatorMessage; dubbing it again would reset its transactions */
+    private volatile ManagerNodeRef dubbedCoordinator;
+    private final AtomicInteger currentTxnID = new AtomicInteger();
+    protected final RequestBatcher batcher;
+    protected final DecisionCache decisions = new DecisionCache(Common.DECISION_CACHE_SIZE);
 
     public TransactionManager(int numNodes) {
         nodes = createNodes(numNodes);
+        batcher = new RequestBatcher(this, Common.MAX_BATCH_SIZE, batchLingerMillis());
+    }
+
+    protected long batchLingerMillis() {
+        return Common.BATCH_LINGER_MILLISECONDS;
     }
 
     public abstract List<ManagerNodeRef> createNodes(int numNodes);
@@ -56,13 +71,53 @@ public abstract class TransactionManager {
     }
 
     public void processRequest(VoteRequest voteRequest) {
-        dubCoordinator(1);
-        try {
-            getCoordinator().sendMessage(voteRequest);
-        }
-        catch (IOException e) {
-            /* ignore */
+        sendRequest(voteRequest);
+    }
+
+    /**
+     * Queues the request to go to the coordinator in a batch with others submitted around
+     * the same time. Its transaction ID should come from `getNextTransactionID`.
+     *
+     * @param onDecision given the COMMIT or ABORT for this request
+     */
+    public void submit(VoteRequest voteRequest, Consumer<Message> onDecision) {
+        batcher.submit(voteRequest, onDecision);
+    }
+
+    /**
+     * Queues the request like `submit(VoteRequest, Consumer)`, so any number of callers can
+     * have requests outstanding at once without a thread each.
+     *
+     * @return completed with the COMMIT or ABORT for this request
+     */
+    public CompletableFuture<Message> submit(VoteRequest voteRequest) {
+        CompletableFuture<Message> decision = new CompletableFuture<>();
+        submit(voteRequest, decision::complete);
+        return decision;
+    }
+
+    /**
+     * sends the queued requests without waiting for their batch to fill
+     */
+    public void flushRequests() {
+        batcher.flush();
+    }
+
+    void sendRequest(VoteRequest voteRequest) {
+        ManagerNodeRef coord = getCoordinator();
+        if (coord == null || coord != dubbedCoordinator) {
+            dubCoordinator(coord == null ? 1 : coord.getNodeID());
         }
+        sendCoordinator(voteRequest);
+    }
+
+    /**
+     * Answers a recovering node from the decision cache, or with UNCERTAIN when the
+     * outcome isn't there, so the node knows to ask its peers instead.
+     */
+    public void answerDecisionRequest(int nodeID, DecisionRequest request) {
+        Message decision = decisions.get(request.getTransactionID());
+        send(nodeID, decision != null ? decision : new UncertainResponse(request.getTransactionID()));
     }
 
     public void sendCoordinator(Message message) {
@@ -92,6 +147,26 @@ public abstract class TransactionManager {
             System.err.println("Couldn't dub coordinator");
         }
         setCoordinator(newCoord);
+        dubbedCoordinator = newCoord;
+    }
+
+    /**
+     * A restarted node boots as a participant, behind the same reference, so if it was the
+     * coordinator the next request has to dub it again.
+     */
+    void nodeRestarted(int nodeID) {
+        ManagerNodeRef dubbed = dubbedCoordinator;
+        if (dubbed != null && dubbed.getNodeID() == nodeID) {
+            dubbedCoordinator = null;
+        }
+    }
+
+    public int getTransactionID() {
+        return currentTxnID.get();
+    }
+
+    public int getNextTransactionID() {
+        return currentTxnID.incrementAndGet();
     }
 
     public ManagerNodeRef getNodeByID(int nodeID) {
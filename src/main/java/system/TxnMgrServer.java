@@ -3,82 +3,67 @@ package system;
 import messages.DecisionRequest;
 import messages.Message;
 import messages.NodeMessage;
-import node.system.ConnectionListener;
 import system.network.Connection;
 import system.network.MessageReceiver;
-import system.network.ObjectConnection;
-import util.Common;
+import system.network.NioConnection;
+import system.network.NioTransport;
 
 import java.io.EOFException;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
 
 /**
  * Ethan Petuchowski 2/26/15
  */
-public class TxnMgrServer implements Runnable, MessageReceiver {
+public class TxnMgrServer implements MessageReceiver {
     AsyncTxnMgr txnMgr;
-    ServerSocket serverSocket;
-    static int requestPort = 3000;
+    NioTransport transport;
     private boolean waitForCoordinatorToReconnectThenSendDecisionRequest = false;
 
     public int getListenPort() {
-        return serverSocket.getLocalPort();
+        return transport.getListenPort();
     }
 
-    public TxnMgrServer(AsyncTxnMgr txnMgr) {
+    public TxnMgrServer(AsyncTxnMgr txnMgr) throws IOException {
         this.txnMgr = txnMgr;
-        serverSocket = Common.claimOpenPort();
+        transport = new NioTransport("txnMgr", this, this::nodeConnected);
     }
 
-    @Override public void run() {
-        while (true) {
-            try {
-                Socket socket = serverSocket.accept();
-                ObjectConnection conn = addConnection(socket);
+    void nodeConnected(NioConnection conn, NodeMessage n) {
+        try {
+            addConnection(conn, n);
 
-                /* transactions can commence once all nodes have connected */
-                txnMgr.nodesConnected.lockInterruptibly();
-                if (txnMgr.getNumConnectedNodes() == txnMgr.getNodes().size()) {
-                    txnMgr.allNodesConnected.signalAll();
-                }
-                txnMgr.nodesConnected.unlock();
+            /* transactions can commence once all nodes have connected */
+            txnMgr.nodesConnected.lockInterruptibly();
+            if (txnMgr.getNumConnectedNodes() == txnMgr.getNodes().size()) {
+                txnMgr.allNodesConnected.signalAll();
+            }
+            txnMgr.nodesConnected.unlock();
 
-                if (waitForCoordinatorToReconnectThenSendDecisionRequest) {
-                    txnMgr.sendCoordinator(new DecisionRequest(txnMgr.getTransactionID()));
+            if (waitForCoordinatorToReconnectThenSendDecisionRequest) {
+                waitForCoordinatorToReconnectThenSendDecisionRequest = false;
+                for (int txnID : txnMgr.getUndecidedTransactionIDs()) {
+                    txnMgr.sendCoordinator(new DecisionRequest(txnID));
                 }
             }
-            catch (IOException | InterruptedException e) {
-                e.printStackTrace();
-            }
+        }
+        catch (InterruptedException e) {
+            e.printStackTrace();
         }
     }
 
-    ObjectConnection addConnection(Socket socket) {
-        ObjectConnection conn = new ObjectConnection(socket, -1);
-
-        NodeMessage n = null;
-        try {
-            n = (NodeMessage) conn.receiveMessage();
-        }
-        catch (EOFException ignored) {
-//            System.err.println("TxnMgr received EOFException from "+conn.getReceiverID());
-        }
-        assert n != null;
+    void addConnection(NioConnection conn, NodeMessage n) {
         int nodeID = n.getNodeID();
         int listenPort = n.getListenPort();
 
-        conn.setReceiverID(nodeID);
         ManagerNodeRef mgrNodeRef = txnMgr.remoteNodeWithID(nodeID);
         mgrNodeRef.setListenPort(listenPort);
         mgrNodeRef.setConn(conn);
-        new Thread(new ConnectionListener(this, conn)).start();
-        return conn;
+        /* a dub sent while it was down went nowhere */
+        txnMgr.nodeRestarted(nodeID);
     }
 
     /**
-     * This is the callback called by the `ConnectionListener` when a
+     * This is the callback called by the `NioTransport` when a
      * `Message` is received over the associated `Connection`.
      * It should inform the User of the outcome of their submitted `VoteRequest`.
      */
@@ -91,13 +76,18 @@ public class TxnMgrServer implements Runnable, MessageReceiver {
 //                txnMgr.reviveNode(nodeID);
 
                 /* if it was the coordinator who died, */
-                if (nodeID == txnMgr.getCoordinator().getNodeID() && txnMgr.getTransactionResult() == null) {
+                if (nodeID == txnMgr.getCoordinator().getNodeID() && !txnMgr.getUndecidedTransactionIDs().isEmpty()) {
                     waitForCoordinatorToReconnectThenSendDecisionRequest = true;
                 }
             }
             else {
                 System.out.println("mgr rcvd a "+message.getCommand()+" from node "+nodeID);
-                txnMgr.receiveResponse(message);
+                if (message.getCommand() == Message.Command.DECISION_REQUEST) {
+                    txnMgr.answerDecisionRequest(nodeID, (DecisionRequest) message);
+                }
+                else {
+                    txnMgr.receiveResponse(message);
+                }
             }
         }
         catch (EOFException ignore) {
@@ -3,7 +3,6 @@ package system.failures;
 import messages.Message;
 import messages.TokenReader;
 import messages.TokenWriter;
-import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 
 /**
  * Ethan Petuchowski 3/3/15
@@ -17,9 +16,9 @@ public class DeathAfter extends Message {
         this.whichProc = whichProc;
     }
 
-    final int numMsgs;
-    final int fromProc;
-    final int whichProc;
+    int numMsgs;
+    int fromProc;
+    int whichProc;
 
     public int getNumMsgs() {
         return numMsgs;
@@ -34,10 +33,14 @@ public class DeathAfter extends Message {
     }
 
     @Override protected void writeAsTokens(TokenWriter writer) {
-        throw new NotImplementedException();
+        writer.writeInt(numMsgs);
+        writer.writeInt(fromProc);
+        writer.writeInt(whichProc);
     }
 
     @Override protected void readFromTokens(TokenReader reader) {
-        throw new NotImplementedException();
+        numMsgs = reader.readInt();
+        fromProc = reader.readInt();
+        whichProc = reader.readInt();
     }
 }
@@ -3,16 +3,15 @@ package system.failures;
 import messages.Message;
 import messages.TokenReader;
 import messages.TokenWriter;
-import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 
 /**
  * Ethan Petuchowski 3/3/15
  */
 public class PartialBroadcast extends Message {
 
-    final int countProcs;
-    final int whichProc;
-    final Command stage;
+    int countProcs;
+    int whichProc;
+    Command stage;
 
     public PartialBroadcast(Command stage, int countProcs, int whichProc) {
         super(Command.PARTIAL_BROADCAST);
@@ -22,11 +21,15 @@ public class PartialBroadcast extends Message {
     }
 
     @Override protected void writeAsTokens(TokenWriter writer) {
-        throw new NotImplementedException();
+        writer.writeToken(stage.toString());
+        writer.writeInt(countProcs);
+        writer.writeInt(whichProc);
     }
 
     @Override protected void readFromTokens(TokenReader reader) {
-        throw new NotImplementedException();
+        stage = Command.valueOf(reader.readToken());
+        countProcs = reader.readInt();
+        whichProc = reader.readInt();
     }
 
     public Command getStage() {
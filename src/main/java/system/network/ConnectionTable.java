@@ -0,0 +1,77 @@
+package system.network;
+
+import java.util.AbstractCollection;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A node's connections to its peers, at most one per peer, indexed by the peer's ID.
+ *
+ * Safe to use from the transport's threads, the node's timers, and its state machine at
+ * once. Looking a peer up is a hash lookup rather than a scan. Iteration is weakly
+ * consistent, so a broadcast can walk the table while connections come and go without
+ * a `ConcurrentModificationException`; it sees each peer at most once.
+ */
+public class ConnectionTable extends AbstractCollection<Connection> {
+
+    private final ConcurrentHashMap<Integer, Connection> byPeerID = new ConcurrentHashMap<>();
+
+    /**
+     * @return the connection to the peer, or null if there is none
+     */
+    public Connection get(int peerID) {
+        return byPeerID.get(peerID);
+    }
+
+    public boolean isConnectedTo(int peerID) {
+        return byPeerID.containsKey(peerID);
+    }
+
+    /**
+     * @return the connection this replaced, if the peer already had one
+     */
+    public Connection put(Connection connection) {
+        return byPeerID.put(connection.getReceiverID(), connection);
+    }
+
+    /**
+     * replaces any connection to the same peer
+     *
+     * @return false if this connection was already the peer's
+     */
+    @Override public boolean add(Connection connection) {
+        return put(connection) != connection;
+    }
+
+    /**
+     * Removes the connection only if it is still the one held for its peer, so a stale
+     * connection failing late can't evict the one that replaced it.
+     */
+    @Override public boolean remove(Object o) {
+        if (!(o instanceof Connection)) {
+            return false;
+        }
+        Connection connection = (Connection) o;
+        return byPeerID.remove(connection.getReceiverID(), connection);
+    }
+
+    @Override public boolean contains(Object o) {
+        if (!(o instanceof Connection)) {
+            return false;
+        }
+        Connection connection = (Connection) o;
+        return byPeerID.get(connection.getReceiverID()) == connection;
+    }
+
+    @Override public Iterator<Connection> iterator() {
+        return byPeerID.values().iterator();
+    }
+
+    @Override public int size() {
+        return byPeerID.size();
+    }
+
+    @Override public void clear() {
+        byPeerID.clear();
+    }
+}
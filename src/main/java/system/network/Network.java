@@ -13,10 +13,10 @@ import java.util.Collection;
 public class Network {
 
     private NetworkDelay.Type networkDelay;
-    private Collection<ObjectConnection> connections;
+    private Collection<Connection> connections;
     private TransactionManager system;
 
-    public void addConn(ObjectConnection connection) {
+    public void addConn(Connection connection) {
         connections.add(connection);
     }
 
@@ -0,0 +1,137 @@
+package system.network;
+
+import messages.Message;
+import messages.MessageCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One end of a non-blocking socket owned by a `NioTransport`.
+ *
+ * Frames are `MessageCodec` records. Sends are queued and written by the transport's
+ * selector thread; received messages are queued by that thread and handed out by
+ * `receiveMessage` when the transport dispatches them. Once the connection closes,
+ * `receiveMessage` returns null, as the blocking connections did.
+ */
+public class NioConnection extends Connection {
+    /* a frame claiming to be longer than this means the stream is corrupt */
+    static final int MAX_FRAME_BYTES = 16*1024*1024;
+
+    final SocketChannel channel;
+    private final NioTransport transport;
+    SelectionKey key;
+
+    /* false until the other end's NodeMessage has been read */
+    boolean identified;
+    int msgsRcvd = 0;
+
+    /* only touched by the selector thread */
+    private ByteBuffer readBuffer = ByteBuffer.allocate(8*1024);
+
+    private final Queue<ByteBuffer> outbound = new ArrayDeque<>();  // guarded by this
+    private final Queue<Message> inbound = new ConcurrentLinkedQueue<>();
+    private volatile boolean open = true;
+
+    NioConnection(NioTransport transport, SocketChannel channel, int receiverID, boolean identified) {
+        super(receiverID);
+        this.transport = transport;
+        this.channel = channel;
+        this.identified = identified;
+    }
+
+    /**
+     * @return the next message received, or null if none is waiting (eg. because the connection closed)
+     */
+    @Override public Message receiveMessage() {
+        return inbound.poll();
+    }
+
+    /**
+     * Queues the message and returns without waiting for it to be written. A connection
+     * that breaks later is reported to the receiver as a null message.
+     */
+    @Override public void sendMessage(Message o) throws IOException {
+        if (!open) {
+            throw new IOException("Connection to "+getReceiverID()+" is closed");
+        }
+        ByteBuffer frame = MessageCodec.encode(o);
+        synchronized (this) {
+            outbound.add(frame);
+        }
+        transport.requestFlush(this);
+    }
+
+    @Override public boolean isReady() {
+        return open && channel.isOpen();
+    }
+
+    public void close() {
+        transport.close(this);
+    }
+
+    /**
+     * Reads whatever has arrived and queues every complete frame in it.
+     *
+     * @return the number of messages queued, or -1 if the other end has closed the connection
+     */
+    int readFrames() throws IOException {
+        if (channel.read(readBuffer) < 0) {
+            return -1;
+        }
+        readBuffer.flip();
+        int queued = 0;
+        while (readBuffer.remaining() >= MessageCodec.HEADER_BYTES) {
+            int length = readBuffer.getInt(readBuffer.position());
+            if (length <= 0 || length > MAX_FRAME_BYTES) {
+                throw new IOException("Corrupt frame from "+getReceiverID());
+            }
+            int frameBytes = MessageCodec.HEADER_BYTES+length;
+            if (readBuffer.remaining() < frameBytes) {
+                if (readBuffer.capacity() < frameBytes) {
+                    ByteBuffer bigger = ByteBuffer.allocate(Integer.highestOneBit(frameBytes)*2);
+                    bigger.put(readBuffer);
+                    readBuffer = bigger;
+                    return queued;
+                }
+                break;
+            }
+            int next = readBuffer.position()+frameBytes;
+            Message message = MessageCodec.decode(readBuffer);
+            if (message == null) {
+                System.err.println("Dropped a message from "+getReceiverID()+" that failed its checksum");
+                readBuffer.position(next);
+            }
+            else {
+                inbound.add(message);
+                queued++;
+            }
+        }
+        readBuffer.compact();
+        return queued;
+    }
+
+    /**
+     * @return true once everything queued has been written
+     */
+    synchronized boolean flush() throws IOException {
+        while (!outbound.isEmpty()) {
+            ByteBuffer frame = outbound.peek();
+            channel.write(frame);
+            if (frame.hasRemaining()) {
+                return false;
+            }
+            outbound.poll();
+        }
+        return true;
+    }
+
+    void markClosed() {
+        open = false;
+    }
+}
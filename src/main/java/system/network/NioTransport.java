@@ -0,0 +1,282 @@
+package system.network;
+
+import messages.Message;
+import messages.NodeMessage;
+import util.Common;
+import util.NodeThreads;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking transport for every connection of one process.
+ *
+ * A single selector thread does all the accepting, reading and writing, and hands each
+ * received message to a single dispatch thread, which calls the `MessageReceiver` just
+ * as a `ConnectionListener` used to. So a process needs two threads however many peers
+ * it talks to, and messages are still handled one at a time in arrival order.
+ *
+ * The first frame on every connection must be a `NodeMessage` naming the sender. The
+ * transport consumes it and hands accepted connections to the `Acceptor`; connections
+ * made with `connect` already know who's at the other end.
+ */
+public class NioTransport {
+
+    public interface Acceptor {
+        void accepted(NioConnection connection, NodeMessage hello);
+    }
+
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final MessageReceiver receiver;
+    private final Acceptor acceptor;
+    private final Thread selectorThread;
+    private final ExecutorService dispatcher;
+
+    /* work for the selector thread, which alone may touch selection keys */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    public NioTransport(String name, MessageReceiver receiver, Acceptor acceptor) throws IOException {
+        this(name, receiver, acceptor, 0);
+    }
+
+    /**
+     * @param port where to listen, or 0 for any free port
+     */
+    public NioTransport(String name, MessageReceiver receiver, Acceptor acceptor, int port) throws IOException {
+        this.receiver = receiver;
+        this.acceptor = acceptor;
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        try {
+            /* so a node restarted on its old port needn't wait out its old connections' TIME_WAIT */
+            server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            server.bind(new InetSocketAddress(Common.LOCALHOST, port));
+        }
+        catch (IOException e) {
+            server.close();
+            selector.close();
+            throw e;
+        }
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        dispatcher = Executors.newSingleThreadExecutor(r -> NodeThreads.newThread(r, name+"-dispatch"));
+
+        /* always a (non-daemon) platform thread, since it's what keeps a node's process alive */
+        selectorThread = new Thread(this::runSelector, name+"-selector");
+        selectorThread.start();
+    }
+
+    public int getListenPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * connects (blocking only until the socket is established) to the process listening on `port`
+     */
+    public NioConnection connect(int port, int receiverID) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(Common.LOCALHOST, port));
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        NioConnection connection = new NioConnection(this, channel, receiverID, true);
+        runOnSelector(() -> register(connection));
+        return connection;
+    }
+
+    /**
+     * Closes every connection and stops both threads. Returns once the listening port has
+     * been released, so a new transport can bind it straight away.
+     */
+    public void shutdown() {
+        final CountDownLatch closed = new CountDownLatch(1);
+        Runnable close = () -> {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof NioConnection) {
+                    closeAndReport((NioConnection) key.attachment());
+                }
+            }
+            try {
+                /* a registered channel's socket is only released once the selector lets go of it */
+                server.close();
+                selector.close();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+            dispatcher.shutdown();
+            closed.countDown();
+        };
+        if (!selectorThread.isAlive()) {
+            close.run();
+            return;
+        }
+        runOnSelector(close);
+        try {
+            if (!closed.await(Common.TIMEOUT_MILLISECONDS(), TimeUnit.MILLISECONDS)) {
+                System.err.println("Transport on port "+getListenPort()+" didn't shut down in time");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void requestFlush(NioConnection connection) {
+        runOnSelector(() -> flush(connection));
+    }
+
+    void close(NioConnection connection) {
+        runOnSelector(() -> closeAndReport(connection));
+    }
+
+    private void runOnSelector(Runnable task) {
+        if (Thread.currentThread() == selectorThread) {
+            task.run();
+        }
+        else {
+            tasks.add(task);
+            selector.wakeup();
+        }
+    }
+
+    private void runSelector() {
+        while (selector.isOpen()) {
+            try {
+                selector.select();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+            if (!selector.isOpen()) {
+                return;
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept();
+                    continue;
+                }
+                NioConnection connection = (NioConnection) key.attachment();
+                try {
+                    if (key.isReadable()) {
+                        read(connection);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        flush(connection);
+                    }
+                }
+                catch (IOException e) {
+                    closeAndReport(connection);
+                }
+            }
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                register(new NioConnection(this, channel, Common.INVALID_ID, false));
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void register(NioConnection connection) {
+        try {
+            connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+            flush(connection);
+        }
+        catch (IOException e) {
+            closeAndReport(connection);
+        }
+    }
+
+    private void read(NioConnection connection) throws IOException {
+        int queued = connection.readFrames();
+        if (queued < 0) {
+            closeAndReport(connection);
+            return;
+        }
+        for (int i = 0; i < queued; i++) {
+            if (!connection.identified) {
+                Message hello = connection.receiveMessage();
+                if (!(hello instanceof NodeMessage)) {
+                    System.err.println("Connection didn't start with a node msg, closing it");
+                    closeAndReport(connection);
+                    return;
+                }
+                connection.identified = true;
+                connection.setReceiverID(((NodeMessage) hello).getNodeID());
+                dispatcher.execute(() -> acceptor.accepted(connection, (NodeMessage) hello));
+            }
+            else {
+                dispatcher.execute(() -> receiver.receiveMessageFrom(connection, ++connection.msgsRcvd));
+            }
+        }
+    }
+
+    private void flush(NioConnection connection) {
+        if (connection.key == null || !connection.key.isValid()) {
+            return;     // not registered yet; registering flushes
+        }
+        try {
+            boolean drained = connection.flush();
+            connection.key.interestOps(drained
+                                       ? SelectionKey.OP_READ
+                                       : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+        catch (IOException e) {
+            closeAndReport(connection);
+        }
+    }
+
+    /**
+     * closes the connection and, if it was in use, tells the receiver with one last
+     * (null) message, as a blocking connection's listener would have
+     */
+    private void closeAndReport(NioConnection connection) {
+        if (!connection.isReady()) {
+            return;
+        }
+        connection.markClosed();
+        if (connection.key != null) {
+            connection.key.cancel();
+        }
+        try {
+            connection.channel.close();
+        }
+        catch (IOException e) {
+            System.err.println("Can't close socket");
+        }
+        if (connection.identified) {
+            dispatcher.execute(() -> receiver.receiveMessageFrom(connection, ++connection.msgsRcvd));
+        }
+    }
+}
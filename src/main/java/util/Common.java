@@ -24,6 +24,66 @@ public class Common {
     public static int ASYNC_NODE_ID = INVALID_ID;
     public static int TIMEOUT_MILLISECONDS() { return 500 + MESSAGE_DELAY * 3; }
 
+    /* transactions a coordinator runs at once; requests beyond this, or for a song already in flight, wait their turn */
+    public static final String MAX_IN_FLIGHT_PROPERTY = "txn.maxInFlight";
+    public static int MAX_TRANSACTIONS_IN_FLIGHT = Integer.getInteger(MAX_IN_FLIGHT_PROPERTY, 32);
+
+    /* requests the transaction manager sends the coordinator as one BatchRequest, and how long the first waits for company */
+    public static final String BATCH_SIZE_PROPERTY = "txnMgr.batchSize";
+    public static int MAX_BATCH_SIZE = Integer.getInteger(BATCH_SIZE_PROPERTY, 64);
+    public static final String BATCH_LINGER_PROPERTY = "txnMgr.batchLingerMillis";
+    public static long BATCH_LINGER_MILLISECONDS = Long.getLong(BATCH_LINGER_PROPERTY, 5);
+
+    /* how many recent outcomes the transaction manager keeps to answer recovering nodes' decision requests */
+    public static final String DECISION_CACHE_SIZE_PROPERTY = "txnMgr.decisionCacheSize";
+    public static int DECISION_CACHE_SIZE = Integer.getInteger(DECISION_CACHE_SIZE_PROPERTY, 1024);
+
+    /* whether a recovering participant asks all its peers for the decision at once, rather than one after another */
+    public static final String RECOVERY_PARALLEL_PROPERTY = "recovery.parallel";
+    public static boolean RECOVERY_PARALLEL = Boolean.getBoolean(RECOVERY_PARALLEL_PROPERTY);
+
+    /* how long a recovering participant that heard no decision waits before asking again, doubling up to the max */
+    public static final String RECOVERY_BACKOFF_PROPERTY = "recovery.backoffMillis";
+    public static long RECOVERY_BACKOFF_MILLISECONDS = Long.getLong(RECOVERY_BACKOFF_PROPERTY, 1000);
+    public static final String RECOVERY_MAX_BACKOFF_PROPERTY = "recovery.maxBackoffMillis";
+    public static long RECOVERY_MAX_BACKOFF_MILLISECONDS = Long.getLong(RECOVERY_MAX_BACKOFF_PROPERTY, RECOVERY_BACKOFF_MILLISECONDS);
+
+    /* resolution of nodes' timeouts */
+    public static final long TIMER_TICK_MILLISECONDS = 10;
+
+    /* max time a DTLog record waits for others to share its fsync; negative means no group commit */
+    public static final String GROUP_COMMIT_PROPERTY = "dtlog.groupCommitMillis";
+    public static long LOG_GROUP_COMMIT_MILLISECONDS = Long.getLong(GROUP_COMMIT_PROPERTY, -1);
+
+    /* records between DTLog checkpoints; non-positive means the log is never truncated */
+    public static int LOG_CHECKPOINT_INTERVAL = 10000;
+
+    /* how many of the newest transactions a DTLog checkpoint keeps the decisions of; non-positive keeps them all */
+    public static int LOG_CHECKPOINT_DECISIONS = 1000;
+
+    /* a FileDTLog starts a new segment rather than grow one past this size */
+    public static long LOG_SEGMENT_BYTES = 4*1024*1024;
+
+    /* whether FileDTLog segments are zero-filled to full size up front (and, without group commit, written with DSYNC) */
+    public static final String PREALLOCATE_PROPERTY = "dtlog.preallocate";
+    public static boolean LOG_PREALLOCATE = Boolean.getBoolean(PREALLOCATE_PROPERTY);
+
+    /* whether a node's DTLog is appended to by its own writer thread, so only forced records stall the node */
+    public static final String ASYNC_WRITER_PROPERTY = "dtlog.asyncWriter";
+    public static boolean LOG_ASYNC_WRITER = Boolean.getBoolean(ASYNC_WRITER_PROPERTY);
+
+    /* what nodes' timers and message dispatch run on: "platform" threads, or "virtual" threads where the JVM has them */
+    public static final String THREAD_MODE_PROPERTY = "node.threads";
+    public static String THREAD_MODE = System.getProperty(THREAD_MODE_PROPERTY, NodeThreads.PLATFORM);
+
+    /* whether the transaction manager runs its nodes in its own JVM rather than a process each */
+    public static final String NODES_IN_JVM_PROPERTY = "txnMgr.nodesInJvm";
+    public static boolean NODES_IN_JVM = Boolean.getBoolean(NODES_IN_JVM_PROPERTY);
+
+    /* whether a node queues its messages and timer events on a mailbox drained one at a time, rather than taking its monitor for each */
+    public static final String MAILBOX_PROPERTY = "node.mailbox";
+    public static boolean NODE_MAILBOX = Boolean.getBoolean(MAILBOX_PROPERTY);
+
     public static ServerSocket claimOpenPort() {
         ServerSocket serverSocket = null;
         while (serverSocket == null) {
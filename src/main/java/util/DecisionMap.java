@@ -0,0 +1,103 @@
+package util;
+
+import messages.Message.Command;
+
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Open-addressing map from transaction ID to its decision (COMMIT or ABORT).
+ *
+ * Keys and values live in primitive arrays, so recording or looking up a
+ * decision doesn't allocate. Later puts for the same transaction win.
+ */
+public class DecisionMap {
+    private static final byte EMPTY = 0;
+    private static final Command[] COMMANDS = Command.values();
+
+    private int[] keys;
+    private byte[] values;
+    private int size = 0;
+
+    public DecisionMap() {
+        this(64);
+    }
+
+    public DecisionMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize, 8)*2-1)*2;
+        keys = new int[capacity];
+        values = new byte[capacity];
+    }
+
+    public void put(int transactionID, Command decision) {
+        if (!decision.isDecision()) {
+            throw new IllegalArgumentException(decision+" is not a decision");
+        }
+        if ((size+1)*2 > keys.length) {
+            grow();
+        }
+        int slot = slotFor(keys, values, transactionID);
+        if (values[slot] == EMPTY) {
+            keys[slot] = transactionID;
+            size++;
+        }
+        values[slot] = (byte) decision.ordinal();
+    }
+
+    /**
+     * @return the decision for the transaction, or null if none has been recorded
+     */
+    public Command get(int transactionID) {
+        byte value = values[slotFor(keys, values, transactionID)];
+        return value == EMPTY ? null : COMMANDS[value];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * visits every (decision, transactionID) pair, in no particular order
+     */
+    public void forEach(ObjIntConsumer<Command> action) {
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] != EMPTY) {
+                action.accept(COMMANDS[values[i]], keys[i]);
+            }
+        }
+    }
+
+    public void putAll(DecisionMap other) {
+        other.forEach((decision, txnID) -> put(txnID, decision));
+    }
+
+    private void grow() {
+        int[] newKeys = new int[keys.length*2];
+        byte[] newValues = new byte[values.length*2];
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] != EMPTY) {
+                int slot = slotFor(newKeys, newValues, keys[i]);
+                newKeys[slot] = keys[i];
+                newValues[slot] = values[i];
+            }
+        }
+        keys = newKeys;
+        values = newValues;
+    }
+
+    /**
+     * @return the slot holding `key`, or the empty slot where it belongs
+     */
+    private static int slotFor(int[] keys, byte[] values, int key) {
+        int mask = keys.length-1;
+        int slot = mix(key) & mask;
+        while (values[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot+1) & mask;
+        }
+        return slot;
+    }
+
+    private static int mix(int key) {
+        int h = key*0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
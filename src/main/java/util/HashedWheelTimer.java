@@ -0,0 +1,142 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single-threaded timer for large numbers of timeouts that are mostly cancelled
+ * before they go off.
+ *
+ * Timeouts hash by their deadline tick into a fixed ring of slots, each a doubly linked
+ * list, so scheduling and cancelling are O(1) and cost no thread. One worker thread wakes
+ * every tick and runs whatever in the current slot is due; a timeout further away than
+ * one revolution just stays in its slot until the wheel comes round to its tick. Tasks
+ * run on the worker thread, so anything slow should hand itself off elsewhere.
+ */
+public class HashedWheelTimer {
+
+    public final class Timeout {
+        final Runnable task;
+        final long deadlineTick;
+        Timeout prev, next;
+        boolean scheduled = true;  // guarded by the timer
+
+        Timeout(Runnable task, long deadlineTick) {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        /**
+         * @return true if this stopped the timeout from going off
+         */
+        public boolean cancel() {
+            synchronized (HashedWheelTimer.this) {
+                if (!scheduled) {
+                    return false;
+                }
+                unlink(this);
+                return true;
+            }
+        }
+
+        public boolean isScheduled() {
+            synchronized (HashedWheelTimer.this) {
+                return scheduled;
+            }
+        }
+    }
+
+    private final long tickNanos;
+    private final Timeout[] slots;
+    private final int mask;
+    private final long startNanos = System.nanoTime();
+    private long currentTick = 0;   // guarded by this
+    private Thread worker = null;   // guarded by this
+
+    /**
+     * @param slotCount rounded up to a power of two
+     */
+    public HashedWheelTimer(long tickMillis, int slotCount) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int size = Integer.highestOneBit(Math.max(1, slotCount-1))*2;
+        this.slots = new Timeout[size];
+        this.mask = size-1;
+    }
+
+    /**
+     * @return a handle to cancel the task with; it runs on the timer's thread
+     *         no sooner than `delayMillis` from now, rounded up to a whole tick
+     */
+    public synchronized Timeout schedule(Runnable task, long delayMillis) {
+        if (worker == null) {
+            worker = NodeThreads.newThread(this::run, "timer-wheel");
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        /* ticks are counted from when the wheel was created, not from the last tick */
+        long deadlineNanos = System.nanoTime()-startNanos+TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        long deadlineTick = Math.max(currentTick+1, (deadlineNanos+tickNanos-1)/tickNanos);
+        Timeout timeout = new Timeout(task, deadlineTick);
+        int slot = (int) (deadlineTick & mask);
+        timeout.next = slots[slot];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        slots[slot] = timeout;
+        return timeout;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        }
+        else {
+            slots[(int) (timeout.deadlineTick & mask)] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = timeout.next = null;
+        timeout.scheduled = false;
+    }
+
+    private void run() {
+        List<Runnable> due = new ArrayList<>();
+        long tick = 0;
+        while (true) {
+            tick++;
+            long sleepNanos = startNanos+tick*tickNanos-System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+            }
+            synchronized (this) {
+                currentTick = tick;
+                Timeout timeout = slots[(int) (tick & mask)];
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+                    if (timeout.deadlineTick <= tick) {
+                        unlink(timeout);
+                        due.add(timeout.task);
+                    }
+                    timeout = next;
+                }
+            }
+            for (Runnable task : due) {
+                try {
+                    task.run();
+                }
+                catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+            due.clear();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs the tasks given to it one at a time, in the order they were given, with no
+ * locks: any number of threads enqueue, and the mailbox's one drainer dequeues.
+ *
+ * The drainer is a thread of the mailbox's own, from `NodeThreads.newThread`, started by
+ * the first task. It parks whenever the mailbox is empty and is unparked by the next
+ * task, so however bursty the tasks, the mailbox never starts another thread.
+ */
+public class Mailbox implements Executor {
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final String name;
+    private volatile Thread drainer = null;
+    private volatile boolean closed = false;
+
+    public Mailbox(String name) {
+        this.name = name;
+    }
+
+    /**
+     * does nothing once the mailbox is closed
+     */
+    @Override public void execute(Runnable task) {
+        if (closed) {
+            return;
+        }
+        tasks.add(task);
+        Thread thread = drainer;
+        if (thread == null) {
+            thread = startDrainer();
+        }
+        LockSupport.unpark(thread);
+    }
+
+    private synchronized Thread startDrainer() {
+        if (drainer == null) {
+            Thread thread = NodeThreads.newThread(this::drain, name);
+            thread.setDaemon(true);
+            drainer = thread;
+            thread.start();
+        }
+        return drainer;
+    }
+
+    private void drain() {
+        while (!closed) {
+            Runnable task = tasks.poll();
+            if (task == null) {
+                /* a task added since the poll has already unparked us, so this returns at once */
+                LockSupport.park(this);
+                continue;
+            }
+            try {
+                task.run();
+            }
+            catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Lets the drainer finish the task it's running, if any, then stops it. Tasks still
+     * queued, and any given from now on, are dropped.
+     */
+    public void close() {
+        closed = true;
+        Thread thread = drainer;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+        tasks.clear();
+    }
+
+    public int size() {
+        return tasks.size();
+    }
+}
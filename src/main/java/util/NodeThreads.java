@@ -0,0 +1,83 @@
+package util;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Where a process gets the threads its blocking code runs on.
+ *
+ * Long-lived loops (a transport's dispatcher, a DTLog writer) get a thread of their own
+ * from `newThread`; short tasks like timeout timers are handed to `start`, which uses
+ * the injected executor if there is one and otherwise a fresh thread from the factory.
+ * Either can be swapped out, and the factory can be made to hand out virtual threads
+ * (see `Common.THREAD_MODE`), without the code running on them changing.
+ */
+public class NodeThreads {
+
+    public static final String PLATFORM = "platform";
+    public static final String VIRTUAL = "virtual";
+
+    private static volatile ThreadFactory factory = factoryFor(Common.THREAD_MODE);
+    private static volatile Executor executor = null;
+
+    public static void setFactory(ThreadFactory threadFactory) {
+        factory = threadFactory;
+    }
+
+    /**
+     * @param taskExecutor runs everything passed to `start` from now on; null goes back to a thread per task
+     */
+    public static void setExecutor(Executor taskExecutor) {
+        executor = taskExecutor;
+    }
+
+    /**
+     * @return an unstarted thread from the current factory
+     */
+    public static Thread newThread(Runnable runnable, String name) {
+        Thread thread = factory.newThread(runnable);
+        thread.setName(name);
+        return thread;
+    }
+
+    /**
+     * runs the task in the background
+     *
+     * @return a handle whose `cancel(true)` interrupts the task if it's running
+     */
+    public static Future<?> start(Runnable task, String name) {
+        FutureTask<?> future = new FutureTask<>(task, null);
+        Executor taskExecutor = executor;
+        if (taskExecutor != null) {
+            taskExecutor.execute(future);
+        }
+        else {
+            newThread(future, name).start();
+        }
+        return future;
+    }
+
+    /**
+     * @param mode `PLATFORM`, or `VIRTUAL`, which falls back to platform threads on a JVM without them
+     */
+    public static ThreadFactory factoryFor(String mode) {
+        if (VIRTUAL.equals(mode)) {
+            try {
+                /* Thread.ofVirtual().factory(), looked up reflectively so this still builds for Java 8 */
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                return (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+                                            .getMethod("factory")
+                                            .invoke(builder);
+            }
+            catch (ReflectiveOperationException e) {
+                System.err.println("Virtual threads aren't available on this JVM, using platform threads");
+            }
+        }
+        else if (!PLATFORM.equals(mode)) {
+            System.err.println("Unknown thread mode \""+mode+"\", using platform threads");
+        }
+        return Thread::new;
+    }
+}
@@ -352,4 +352,45 @@ public class CoordinatorStateMachineTest extends TestCommon {
 				CoordinatorStateMachine.CoordinatorState.WaitingForCommand,
 				csm.getState());
 	}
+
+	@Test
+	public void testCommandsForDifferentSongs_runAtOnce() throws Exception {
+		receiveCommandFromTransactionManager(add);
+		AddRequest other = new AddRequest(new SongTuple("other", "url"), TXID + 1,
+				coordinatorPeerReferences);
+		txnMgrToCoordinator.sendMessage(other);
+		assertTrue(csm.receiveMessage(coordinatorToTxnMgr));
+
+		assertEquals(2, csm.getTransactionsInFlight());
+		assertEquals(other, getLastMessageToPeer(0));
+
+		peerRespondsWith(0, new YesResponse(other));
+		peerRespondsWith(1, new YesResponse(other));
+		assertEquals(CoordinatorStateMachine.CoordinatorState.WaitingForAcks,
+				csm.getState(TXID + 1));
+		assertEquals(CoordinatorStateMachine.CoordinatorState.WaitingForVotes,
+				csm.getState(TXID));
+	}
+
+	@Test
+	public void testCommandForSongInFlight_waitsForItsDecision() throws Exception {
+		receiveCommandFromTransactionManager(add);
+		DeleteRequest later = new DeleteRequest("song", TXID + 1,
+				coordinatorPeerReferences);
+		txnMgrToCoordinator.sendMessage(later);
+		assertTrue(csm.receiveMessage(coordinatorToTxnMgr));
+
+		assertEquals(1, csm.getTransactionsInFlight());
+		assertEquals(add, getLastMessageToPeer(0));
+
+		peerRespondsWithYes(0);
+		peerRespondsWithYes(1);
+		peerAcknowledgesPrecommit(0);
+		peerAcknowledgesPrecommit(1);
+
+		assertEquals(1, csm.getTransactionsInFlight());
+		assertEquals(later, getLastMessageToPeer(0));
+		assertEquals(CoordinatorStateMachine.CoordinatorState.WaitingForVotes,
+				csm.getState(TXID + 1));
+	}
 }
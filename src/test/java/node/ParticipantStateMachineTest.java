@@ -10,9 +10,11 @@ import messages.Message.Command;
 import messages.PrecommitRequest;
 import messages.YesResponse;
 import messages.vote_req.AddRequest;
+import messages.vote_req.BatchRequest;
 import messages.vote_req.DeleteRequest;
 import messages.vote_req.UpdateRequest;
 import messages.vote_req.VoteRequest;
+import node.PeerSet;
 import node.system.SyncNode;
 import org.junit.Before;
 import org.junit.Test;
@@ -21,6 +23,7 @@ import system.network.QueueSocket;
 import util.SongTuple;
 import util.TestCommon;
 
+import java.util.Arrays;
 import java.util.stream.Collectors;
 
 import static messages.Message.Command.ACK;
@@ -80,8 +83,8 @@ public class ParticipantStateMachineTest extends TestCommon {
 
         /* state should be reset to have no known ongoing transaction or working peer set */
         assertEquals(TXID, participantSM.getOngoingTransactionID());
-        assertEquals(A_PEER_REFS, participantSM.getPeerSet());
-        assertEquals(A_PEER_REFS, participantUnderTest.getUpSet());
+        assertEquals(new PeerSet(A_PEER_REFS), participantSM.getPeerSet());
+        assertEquals(new PeerSet(A_PEER_REFS), participantUnderTest.getUpSet());
     }
 
     @Test
@@ -319,6 +322,19 @@ public class ParticipantStateMachineTest extends TestCommon {
         assertFalse(participantUnderTest.hasExactSongTuple(A_SONG_TUPLE));
     }
 
+    @Test
+    public void secondVoteWhileFirstInFlight_keepsPeersThatFailedOutOfTheUpSet() throws Exception {
+        testReceiveFromCoordinator(new AddRequest(A_SONG_TUPLE, TXID, A_PEER_REFS));
+        /* peer 3 failed while TXID was in flight */
+        participantUnderTest.getUpSet().remove(3);
+
+        testReceiveFromCoordinator(new AddRequest(new SongTuple("other", A_URL), TXID+1, A_PEER_REFS));
+
+        assertEquals(2, participantSM.getTransactionsInFlight());
+        assertFalse(participantUnderTest.getUpSet().contains(3));
+        assertTrue(participantUnderTest.getUpSet().contains(1));
+    }
+
     @Test
     public void testReceiveAbortAfterVotingYES() throws Exception {
 
@@ -401,4 +417,50 @@ public class ParticipantStateMachineTest extends TestCommon {
         Message last = getLastMessageInQueue(peerToCoordinator.getOutQueue());
         assertEquals(Command.UNCERTAIN, last.getCommand());
     }
+
+    @Test
+    public void testReceiveValidBatchRequest_votesYesOnce() throws Exception {
+        participantUnderTest.addSongToPlaylist(A_SONG_TUPLE);
+        final BatchRequest msg = new BatchRequest(Arrays.asList(
+                new UpdateRequest(A_SONG_NAME, SAME_SONG_NEW_URL, TXID, A_PEER_REFS),
+                new AddRequest(new SongTuple("other", A_URL), TXID, A_PEER_REFS),
+                new DeleteRequest("other", TXID, A_PEER_REFS)), TXID, A_PEER_REFS);
+        testReceiveFromCoordinator(msg);
+
+        /* the whole batch is one record, read back with its operations in order */
+        Object[] messages = participantUnderTest.getDtLog().getLoggedMessages().toArray();
+        BatchRequest logged = (BatchRequest)messages[0];
+        assertEquals(3, logged.getOperations().size());
+        assertEquals(Command.UPDATE, logged.getOperations().get(0).getCommand());
+        assertEquals(Command.DELETE, logged.getOperations().get(2).getCommand());
+        assertTrue(messages[1] instanceof YesResponse);
+
+        assertStateAfterYESSentToCoordinator();
+    }
+
+    @Test
+    public void testReceiveBatchRequest_oneInvalidOperation_votesNo() throws Exception {
+        final BatchRequest msg = new BatchRequest(Arrays.asList(
+                new AddRequest(A_SONG_TUPLE, TXID, A_PEER_REFS),
+                new AddRequest(SAME_SONG_NEW_URL, TXID, A_PEER_REFS)), TXID, A_PEER_REFS);
+        testReceiveFromCoordinator(msg);
+
+        assertStateAfterNOSentToCoordinator();
+        assertTrue(participantUnderTest.hasNoSongs());
+    }
+
+    @Test
+    public void testReceiveValidCommit_batchRequest() throws Exception {
+        participantUnderTest.addSongToPlaylist(A_SONG_TUPLE);
+        participantSM.setOngoingTransactionID(TXID);
+        participantSM.setPrecommitted(true);
+        participantSM.setAction(new BatchRequest(Arrays.asList(
+                new DeleteRequest(A_SONG_NAME, TXID, A_PEER_REFS),
+                new AddRequest(SAME_SONG_NEW_URL, TXID, A_PEER_REFS)), TXID, A_PEER_REFS));
+
+        testReceiveFromCoordinator(new CommitRequest(TXID));
+
+        assertTrue(participantUnderTest.hasExactSongTuple(SAME_SONG_NEW_URL));
+        assertFalse(participantUnderTest.hasExactSongTuple(A_SONG_TUPLE));
+    }
 }
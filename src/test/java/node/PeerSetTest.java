@@ -0,0 +1,55 @@
+package node;
+
+import org.junit.Test;
+import util.TestCommon;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PeerSetTest extends TestCommon {
+
+    @Test
+    public void keepsEachPeersPort() throws Exception {
+        PeerSet peers = new PeerSet(A_PEER_REFS);
+        assertEquals(3, peers.size());
+        assertTrue(peers.contains(2));
+        assertTrue(peers.contains(new PeerReference(2, 34)));
+        assertFalse(peers.contains(new PeerReference(2, 99)));
+        assertEquals(new PeerReference(1, 23), peers.lowest());
+    }
+
+    @Test
+    public void removal_isInPlace() throws Exception {
+        PeerSet peers = new PeerSet(A_PEER_REFS);
+        PeerSet copy = peers.copy();
+        assertTrue(peers.remove(1));
+        assertFalse(peers.remove(1));
+        assertEquals(2, peers.lowestID());
+        peers.removeBelow(3);
+        assertEquals(Arrays.asList(3), peers.ids());
+        assertEquals(3, copy.size());
+    }
+
+    @Test
+    public void intersection_keepsOnlyCommonMembers() throws Exception {
+        PeerSet peers = new PeerSet(A_PEER_REFS);
+        peers.retainAll(PeerSet.ofIDs(Arrays.asList(2, 3, 70)));
+        assertEquals(Arrays.asList(2, 3), peers.ids());
+        assertEquals(45, peers.getListeningPort(3));
+        peers.retainAll(new PeerSet());
+        assertTrue(peers.isEmpty());
+        assertNull(peers.lowest());
+        assertEquals(-1, peers.highestID());
+    }
+
+    @Test
+    public void iteratesInIDOrder() throws Exception {
+        PeerSet peers = new PeerSet(Arrays.asList(new PeerReference(9, 1), new PeerReference(4, 2)));
+        assertEquals(4, peers.iterator().next().getNodeID());
+        assertEquals(new PeerSet(Arrays.asList(new PeerReference(4, 2), new PeerReference(9, 1))), peers);
+    }
+}
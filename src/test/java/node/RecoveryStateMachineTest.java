@@ -18,6 +18,7 @@ import org.junit.Before;
 import org.junit.Test;
 import system.network.QueueConnection;
 import system.network.QueueSocket;
+import util.Common;
 import util.SongTuple;
 import util.TestCommon;
 
@@ -25,6 +26,8 @@ import java.util.ArrayList;
 import java.util.Collection;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class RecoveryStateMachineTest extends TestCommon {
@@ -297,6 +300,169 @@ public class RecoveryStateMachineTest extends TestCommon {
         assertTrue("node should now be a participant", nodeUnderTest.getStateMachine() instanceof ParticipantStateMachine);
 	}
 
+	@Test
+	public void node_recoverFromUncommittedRequest_decisionAboutAnotherTransaction_isIgnored_andALateOneAboutThisIsFollowed() {
+		setupLogWithUncommittedAdd();
+		peerRespondsWith(1, new UncertainResponse(TXID));
+
+		peerRespondsWith(2, new CommitRequest(TXID-1));
+		assertTrue(nodeUnderTest.hasNoSongs());
+		assertTrue(nodeUnderTest.getStateMachine() == prsm);
+
+		// peer 3 is no longer the one asked, but the decision holds all the same
+		peerRespondsWith(1, new CommitRequest(TXID));
+		assertTrue(nodeUnderTest.hasExactSongTuple(songTuple));
+		assertTrue("node should now be a participant", nodeUnderTest.getStateMachine() instanceof ParticipantStateMachine);
+	}
+
+	private void setupLogWithUncommittedAddInParallelMode() {
+		Common.RECOVERY_PARALLEL = true;
+		try {
+			SyncNode stubNode = new SyncNode(TEST_PEER_ID, null);
+			AddRequest add = new AddRequest(songTuple, TXID, peerReferences);
+			stubNode.logMessage(add);
+			stubNode.logMessage(new YesResponse(add));
+			nodeUnderTest.setDtLog(stubNode.getDtLog());
+			nodeUnderTest.recoverFromDtLog();
+		}
+		finally {
+			Common.RECOVERY_PARALLEL = false;
+		}
+		prsm = (ParticipantRecoveryStateMachine)nodeUnderTest.getStateMachine();
+		prsm.requestDecision();
+	}
+
+	@Test
+	public void node_recoverFromUncommittedRequestInParallel_sendsDecisionRequestToAllPeers() {
+		setupLogWithUncommittedAddInParallelMode();
+		assertEquals(Command.DECISION_REQUEST, getLastMessageToPeer(1).getCommand());
+		assertEquals(Command.DECISION_REQUEST, getLastMessageToPeer(2).getCommand());
+	}
+
+	@Test
+	public void node_recoverFromUncommittedRequestInParallel_firstPeerUncertainAndSecondSendsCommit_followsDecision() {
+		setupLogWithUncommittedAddInParallelMode();
+		peerRespondsWith(1, new UncertainResponse(TXID));
+		peerRespondsWith(2, new CommitRequest(TXID));
+		assertTrue(nodeUnderTest.hasExactSongTuple(songTuple));
+		assertTrue("node should now be a participant", nodeUnderTest.getStateMachine() instanceof ParticipantStateMachine);
+	}
+
+	@Test
+	public void node_recoverFromUncommittedRequestInParallel_lateAnswerFromEarlierRound_doesNotEndTheNextRound() {
+		setupLogWithUncommittedAddInParallelMode();
+		peerRespondsWith(1, new PeerTimeout(3));
+		peerRespondsWith(2, new UncertainResponse(TXID));
+		// the round ended, so the next one asked both peers again
+		assertEquals(2, peerQueueSockets[2].getConnectionToAID().getOutQueue().size());
+
+		// peer 3's answer to the first round turns up, then peer 4 answers the second
+		peerRespondsWith(1, new UncertainResponse(TXID));
+		peerRespondsWith(2, new UncertainResponse(TXID));
+		assertEquals("still waiting on peer 3's answer to this round",
+		             2, peerQueueSockets[2].getConnectionToAID().getOutQueue().size());
+
+		peerRespondsWith(1, new CommitRequest(TXID));
+		assertTrue(nodeUnderTest.hasExactSongTuple(songTuple));
+	}
+
+	@Test
+	public void node_recoverTwoUncommittedRequestsInParallel_bothPeersSendCommitForTheFirst_leavesTheSecondUndecided() {
+		SongTuple other = new SongTuple("other", "url");
+		Common.RECOVERY_PARALLEL = true;
+		try {
+			SyncNode stubNode = new SyncNode(TEST_PEER_ID, null);
+			AddRequest add = new AddRequest(songTuple, TXID, peerReferences);
+			stubNode.logMessage(add);
+			stubNode.logMessage(new YesResponse(add));
+			AddRequest addOther = new AddRequest(other, TXID+1, peerReferences);
+			stubNode.logMessage(addOther);
+			stubNode.logMessage(new YesResponse(addOther));
+			nodeUnderTest.setDtLog(stubNode.getDtLog());
+			nodeUnderTest.recoverFromDtLog();
+			prsm = (ParticipantRecoveryStateMachine)nodeUnderTest.getStateMachine();
+			prsm.requestDecision();
+
+			peerRespondsWith(1, new CommitRequest(TXID));
+			// the second peer's answer to the same request reaches the machine recovering TXID+1
+			peerQueueSockets[2].getConnectionToBID().sendMessage(new CommitRequest(TXID));
+			assertTrue(nodeUnderTest.getStateMachine().receiveMessage(peerQueueSockets[2].getConnectionToAID()));
+		}
+		finally {
+			Common.RECOVERY_PARALLEL = false;
+		}
+
+		assertTrue(nodeUnderTest.hasExactSongTuple(songTuple));
+		assertFalse(nodeUnderTest.hasSongTupleWithName(other));
+		assertNull(nodeUnderTest.getDecisionFor(TXID+1));
+		assertTrue(nodeUnderTest.getStateMachine() instanceof ParticipantRecoveryStateMachine);
+	}
+
+	@Test
+	public void node_recoverFromUncommittedRequestInParallel_bothPeersSendCommit_logsItOnceSoTheLogStillRecovers() {
+		setupLogWithUncommittedAddInParallelMode();
+		peerRespondsWith(1, new CommitRequest(TXID));
+		// the second answer reaches the participant it became
+		peerQueueSockets[2].getConnectionToBID().sendMessage(new CommitRequest(TXID));
+		assertTrue(nodeUnderTest.getStateMachine().receiveMessage(peerQueueSockets[2].getConnectionToAID()));
+
+		SyncNode restarted = new SyncNode(TEST_PEER_ID, null);
+		restarted.setDtLog(nodeUnderTest.getDtLog());
+		restarted.recoverFromDtLog();
+		assertTrue(restarted.hasExactSongTuple(songTuple));
+		assertTrue(restarted.getStateMachine() instanceof ParticipantStateMachine);
+	}
+
+	private QueueSocket setupLogWithUncommittedAddAndTxnMgr() {
+		QueueSocket txnMgrSocket = new QueueSocket(Common.TXN_MGR_ID, TEST_PEER_ID);
+		nodeUnderTest = new SyncNode(TEST_PEER_ID, txnMgrSocket.getConnectionToAID());
+		for (int i = 1; i < 3; ++i) {
+			nodeUnderTest.addConnection(peerQueueSockets[i].getConnectionToAID());
+		}
+		SyncNode stubNode = new SyncNode(TEST_PEER_ID, null);
+		AddRequest add = new AddRequest(songTuple, TXID, peerReferences);
+		stubNode.logMessage(add);
+		stubNode.logMessage(new YesResponse(add));
+		nodeUnderTest.setDtLog(stubNode.getDtLog());
+		nodeUnderTest.recoverFromDtLog();
+		prsm = (ParticipantRecoveryStateMachine)nodeUnderTest.getStateMachine();
+		prsm.requestDecision();
+		return txnMgrSocket;
+	}
+
+	@Test
+	public void node_recoverFromUncommittedRequest_txnMgrKnowsDecision_followsItWithoutAskingPeers() {
+		QueueSocket txnMgrSocket = setupLogWithUncommittedAddAndTxnMgr();
+		assertEquals(Command.DECISION_REQUEST, getLastMessageInQueue(txnMgrSocket.getConnectionToAID().getOutQueue()).getCommand());
+		assertTrue(peerQueueSockets[1].getConnectionToAID().getOutQueue().isEmpty());
+
+		txnMgrSocket.getConnectionToBID().sendMessage(new CommitRequest(TXID));
+		assertTrue(prsm.receiveMessage(txnMgrSocket.getConnectionToAID()));
+		assertTrue(nodeUnderTest.hasExactSongTuple(songTuple));
+		assertTrue("node should now be a participant", nodeUnderTest.getStateMachine() instanceof ParticipantStateMachine);
+	}
+
+	@Test
+	public void node_recoverFromUncommittedRequest_txnMgrUncertain_asksFirstPeer() {
+		QueueSocket txnMgrSocket = setupLogWithUncommittedAddAndTxnMgr();
+		txnMgrSocket.getConnectionToBID().sendMessage(new UncertainResponse(TXID));
+		assertTrue(prsm.receiveMessage(txnMgrSocket.getConnectionToAID()));
+		assertEquals(Command.DECISION_REQUEST, getLastMessageToPeer(1).getCommand());
+	}
+
+	@Test
+	public void node_recoverFromUncommittedRequest_txnMgrNeverAnswers_asksFirstPeerOnTimeout() throws Exception {
+		setupLogWithUncommittedAddAndTxnMgr();
+		assertTrue(peerQueueSockets[1].getConnectionToAID().getOutQueue().isEmpty());
+
+		long deadline = System.currentTimeMillis()+4*Common.TIMEOUT_MILLISECONDS();
+		while (peerQueueSockets[1].getConnectionToAID().getOutQueue().isEmpty()
+		       && System.currentTimeMillis() < deadline) {
+			Thread.sleep(Common.TIMER_TICK_MILLISECONDS);
+		}
+		assertEquals(Command.DECISION_REQUEST, getLastMessageToPeer(1).getCommand());
+	}
+
 	// remaining tests: put an add request and yes vote with no commit in log, then recover to get node into recovery state machine
 
 	// test that when node receives recovering status from all peers and the last to fail is up, it elects a leader and goes to participant recovery mode
@@ -0,0 +1,66 @@
+package node.system;
+
+import messages.CommitRequest;
+import messages.Message;
+import messages.vote_req.AddRequest;
+import util.SongTuple;
+import util.TestCommon;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Compares append latency of the FileDTLog write paths under sustained load:
+ *
+ *      java -cp target/classes:target/test-classes node.system.DTLogWriteBenchmark [records]
+ *
+ * Each configuration logs the same mix of vote requests and commits into a fresh
+ * directory, after a warm-up run that is thrown away. Not run as part of the tests.
+ */
+public class DTLogWriteBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int records = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        System.out.printf("%-32s %10s %10s %10s %10s%n", "writer", "mean us", "p50 us", "p99 us", "max us");
+        run("append, no fsync",                 records, FileDTLog.NO_GROUP_COMMIT, false);
+        run("append + fsync per record",        records, 0, false);
+        run("preallocated + DSYNC",             records, FileDTLog.NO_GROUP_COMMIT, true);
+        run("preallocated + fsync per record",  records, 0, true);
+    }
+
+    private static void run(String name, int records, long groupCommitMillis, boolean preallocate) throws Exception {
+        measure(records/10, groupCommitMillis, preallocate);
+        long[] latencies = measure(records, groupCommitMillis, preallocate);
+        Arrays.sort(latencies);
+        System.out.printf("%-32s %10d %10d %10d %10d%n",
+                name,
+                Arrays.stream(latencies).sum()/latencies.length/1000,
+                latencies[latencies.length/2]/1000,
+                latencies[latencies.length*99/100]/1000,
+                latencies[latencies.length-1]/1000);
+    }
+
+    private static long[] measure(int records, long groupCommitMillis, boolean preallocate) throws Exception {
+        File dir = Files.createTempDirectory("dtlog-bench").toFile();
+        try {
+            FileDTLog log = new FileDTLog(dir, null, groupCommitMillis, preallocate);
+            long[] latencies = new long[records];
+            for (int i = 0; i < records; i++) {
+                Message message = i%2 == 0
+                        ? new AddRequest(new SongTuple("song "+i, TestCommon.A_URL), i, TestCommon.A_PEER_REFS)
+                        : new CommitRequest(i-1);
+                long start = System.nanoTime();
+                log.log(message);
+                latencies[i] = System.nanoTime()-start;
+            }
+            return latencies;
+        }
+        finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+}
@@ -0,0 +1,409 @@
+package node.system;
+
+import messages.AbortRequest;
+import messages.Checkpoint;
+import messages.CommitRequest;
+import messages.Message;
+import messages.MessageCodec;
+import messages.YesResponse;
+import messages.vote_req.AddRequest;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import util.Common;
+import util.SongTuple;
+import util.TestCommon;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+
+import static messages.Message.Command.ABORT;
+import static messages.Message.Command.ADD;
+import static messages.Message.Command.CHECKPOINT;
+import static messages.Message.Command.COMMIT;
+import static messages.Message.Command.YES;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FileDTLogTest extends TestCommon {
+
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    SyncNode node;
+    File logFile;
+
+    @Before
+    public void setUp() throws Exception {
+        node = new SyncNode(TEST_PEER_ID, null);
+        logFile = new File(tmp.getRoot(), String.valueOf(TEST_PEER_ID));
+    }
+
+    @Test
+    public void groupCommit_singleWriter_recordsReadBackInOrder() {
+        node.setDtLog(new FileDTLog(logFile, node, 0));
+
+        AddRequest add = new AddRequest(A_SONG_TUPLE, TXID, A_PEER_REFS);
+        node.logMessage(add);
+        node.logMessage(new YesResponse(add));
+        node.logMessage(new CommitRequest(TXID));
+
+        List<Message> logged = new ArrayList<>(node.getDtLog().getLoggedMessages());
+        assertEquals(3, logged.size());
+        assertEquals(ADD, logged.get(0).getCommand());
+        assertEquals(COMMIT, logged.get(2).getCommand());
+    }
+
+    @Test
+    public void groupCommit_concurrentWriters_everyRecordIsLoggedExactlyOnce() throws Exception {
+        node.setDtLog(new FileDTLog(logFile, node, 5));
+
+        final int numThreads = 8;
+        final int perThread = 25;
+        Collection<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < numThreads; t++) {
+            final int base = t*perThread;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    node.logMessage(new AddRequest(new SongTuple("song "+(base+i), A_URL), base+i, A_PEER_REFS));
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Set<Integer> txnIDs = new TreeSet<>();
+        Collection<Message> logged = new FileDTLog(logFile, node).getLoggedMessages();
+        logged.forEach(m -> txnIDs.add(m.getTransactionID()));
+        assertEquals(numThreads*perThread, logged.size());
+        assertEquals(numThreads*perThread, txnIDs.size());
+    }
+
+    @Test
+    public void binaryFormat_songNameWithDoubleSpaces_roundTripsIntact() {
+        node.setDtLog(new FileDTLog(logFile, node));
+        SongTuple spacey = new SongTuple("two  spaces", "a  url");
+        node.logMessage(new AddRequest(spacey, TXID, A_PEER_REFS));
+
+        AddRequest read = (AddRequest) node.getDtLog().getLoggedMessages().iterator().next();
+        assertEquals("two  spaces", read.getSongTuple().getName());
+        assertEquals("a  url", read.getSongTuple().getUrl());
+        assertEquals(A_PEER_REFS.size(), read.getPeerSet().size());
+    }
+
+    @Test
+    public void binaryFormat_tornTrailingRecord_isIgnored() throws Exception {
+        FileDTLog log = new FileDTLog(logFile, node);
+        node.setDtLog(log);
+        node.logMessage(new CommitRequest(TXID));
+        try (FileOutputStream out = new FileOutputStream(log.segmentFile(0), true)) {
+            out.write(new byte[]{0, 0, 0, 42, 1, 2});
+        }
+
+        Collection<Message> logged = node.getDtLog().getLoggedMessages();
+        assertEquals(1, logged.size());
+        assertEquals(COMMIT, logged.iterator().next().getCommand());
+    }
+
+    @Test
+    public void decisionIndex_rebuiltFromExistingLog_thenUpdatedOnAppend() {
+        node.setDtLog(new FileDTLog(logFile, node));
+        node.logMessage(new CommitRequest(TXID));
+        node.logMessage(new AbortRequest(TXID+1));
+
+        SyncNode restarted = new SyncNode(TEST_PEER_ID, null);
+        restarted.setDtLog(new FileDTLog(logFile, restarted));
+        assertEquals(COMMIT, restarted.getDecisionFor(TXID).getCommand());
+        assertEquals(ABORT, restarted.getDecisionFor(TXID+1).getCommand());
+        assertNull(restarted.getDecisionFor(TXID+2));
+
+        restarted.logMessage(new CommitRequest(TXID+2));
+        assertEquals(COMMIT, restarted.getDecisionFor(TXID+2).getCommand());
+    }
+
+    @Test
+    public void checkpoint_truncatesLog_andRecoveryReplaysOnlyTheSuffix() {
+        final int interval = Common.LOG_CHECKPOINT_INTERVAL;
+        Common.LOG_CHECKPOINT_INTERVAL = 3;
+        try {
+            node.setDtLog(new FileDTLog(logFile, node));
+            AddRequest add = new AddRequest(A_SONG_TUPLE, TXID, A_PEER_REFS);
+            node.logMessage(add);
+            node.logMessage(new YesResponse(add));
+            node.logMessage(new CommitRequest(TXID));
+            node.applyActionToVolatileStorage(add);
+
+            /* this vote request is logged right after a checkpoint */
+            SongTuple other = new SongTuple("other song", A_URL);
+            AddRequest add2 = new AddRequest(other, TXID+1, A_PEER_REFS);
+            node.logMessage(add2);
+            node.logMessage(new YesResponse(add2));
+            node.logMessage(new CommitRequest(TXID+1));
+        }
+        finally {
+            Common.LOG_CHECKPOINT_INTERVAL = interval;
+        }
+
+        List<Message> logged = new ArrayList<>(new FileDTLog(logFile, node).getLoggedMessages());
+        assertEquals(4, logged.size());
+        assertEquals(CHECKPOINT, logged.get(0).getCommand());
+
+        SyncNode restarted = new SyncNode(TEST_PEER_ID, null);
+        restarted.setDtLog(new FileDTLog(logFile, restarted));
+        restarted.recoverFromDtLog();
+        assertTrue(restarted.hasExactSongTuple(A_SONG_TUPLE));
+        assertTrue(restarted.hasExactSongTuple(new SongTuple("other song", A_URL)));
+        assertEquals(COMMIT, restarted.getDecisionFor(TXID).getCommand());
+    }
+
+    @Test
+    public void checkpoint_isTakenWithTransactionsInFlight_andCarriesThemPastIt() {
+        final int interval = Common.LOG_CHECKPOINT_INTERVAL;
+        Common.LOG_CHECKPOINT_INTERVAL = 3;
+        SongTuple second = new SongTuple("second song", A_URL);
+        try {
+            node.setDtLog(new FileDTLog(logFile, node));
+            AddRequest add = new AddRequest(A_SONG_TUPLE, TXID, A_PEER_REFS);
+            AddRequest add2 = new AddRequest(second, TXID+1, A_PEER_REFS);
+            node.logMessage(add);
+            node.logMessage(new YesResponse(add));
+            node.logMessage(add2);
+            node.logMessage(new YesResponse(add2));
+            node.logMessage(new CommitRequest(TXID));
+            node.applyActionToVolatileStorage(add);
+
+            /* checkpointed while TXID+1 is still in flight */
+            node.logMessage(new AddRequest(new SongTuple("third song", A_URL), TXID+2, A_PEER_REFS));
+            node.logMessage(new CommitRequest(TXID+1));
+            node.logMessage(new AbortRequest(TXID+2));
+        }
+        finally {
+            Common.LOG_CHECKPOINT_INTERVAL = interval;
+        }
+
+        List<Message> logged = new ArrayList<>(new FileDTLog(logFile, node).getLoggedMessages());
+        assertEquals(6, logged.size());
+        assertEquals(CHECKPOINT, logged.get(0).getCommand());
+        assertEquals(ADD, logged.get(1).getCommand());
+        assertEquals(TXID+1, logged.get(1).getTransactionID());
+        assertEquals(YES, logged.get(2).getCommand());
+
+        SyncNode restarted = new SyncNode(TEST_PEER_ID, null);
+        restarted.setDtLog(new FileDTLog(logFile, restarted));
+        restarted.recoverFromDtLog();
+        assertTrue(restarted.hasExactSongTuple(A_SONG_TUPLE));
+        assertTrue(restarted.hasExactSongTuple(second));
+        assertFalse(restarted.hasSong("third song"));
+        assertEquals(COMMIT, restarted.getDecisionFor(TXID).getCommand());
+    }
+
+    @Test
+    public void checkpoint_keepsOnlyTheNewestDecisions_soItsSizeDoesntGrowWithUptime() {
+        final int kept = Common.LOG_CHECKPOINT_DECISIONS;
+        Common.LOG_CHECKPOINT_DECISIONS = 5;
+        try {
+            FileDTLog log = new FileDTLog(logFile, node);
+            node.setDtLog(log);
+            for (int round = 0; round < 2; round++) {
+                for (int i = 0; i < 20; i++) {
+                    node.logMessage(new CommitRequest(TXID+20*round+i));
+                }
+                log.checkpoint(new ArrayList<>());
+            }
+        }
+        finally {
+            Common.LOG_CHECKPOINT_DECISIONS = kept;
+        }
+
+        FileDTLog reopened = new FileDTLog(logFile, node);
+        Checkpoint checkpoint = (Checkpoint) reopened.getLoggedMessages().iterator().next();
+        assertEquals(5, checkpoint.getDecisions().size());
+        assertEquals(COMMIT, reopened.getDecisionFor(TXID+39).getCommand());
+        assertEquals(COMMIT, reopened.getDecisionFor(TXID+35).getCommand());
+        assertFalse(reopened.mayHaveForgotten(TXID+35));
+
+        assertNull(reopened.getDecisionFor(TXID+34));
+        assertTrue(reopened.mayHaveForgotten(TXID+34));
+        assertTrue(reopened.mayHaveForgotten(TXID));
+    }
+
+    @Test
+    public void checkpoint_whileTheActiveSegmentIsEmpty_writesANewSegmentRatherThanReplaceIt() throws Exception {
+        FileDTLog log = new FileDTLog(logFile, node);
+        node.setDtLog(log);
+        File emptyActive = log.segmentFile(0);
+        assertTrue(emptyActive.exists());
+
+        log.checkpoint(new ArrayList<>());
+
+        assertEquals(1, log.segments.size());
+        assertTrue(log.segments.get(0) != 0);
+        assertFalse(emptyActive.exists());
+        node.logMessage(new CommitRequest(TXID));
+
+        FileDTLog reopened = new FileDTLog(logFile, node);
+        List<Message> logged = new ArrayList<>(reopened.getLoggedMessages());
+        assertEquals(2, logged.size());
+        assertEquals(CHECKPOINT, logged.get(0).getCommand());
+        assertEquals(COMMIT, reopened.getDecisionFor(TXID).getCommand());
+    }
+
+    @Test
+    public void segments_rollWhenFull_andCheckpointReclaimsThem() {
+        final long segmentBytes = Common.LOG_SEGMENT_BYTES;
+        Common.LOG_SEGMENT_BYTES = 64;
+        try {
+            FileDTLog log = new FileDTLog(logFile, node);
+            node.setDtLog(log);
+            for (int i = 0; i < 20; i++) {
+                node.logMessage(new CommitRequest(TXID+i));
+            }
+            assertEquals(20, log.getNextSequenceNumber());
+            assertTrue(log.segments.size() > 1);
+
+            List<Message> suffix = new ArrayList<>(log.getLoggedMessagesFrom(15));
+            assertEquals(5, suffix.size());
+            assertEquals(TXID+15, suffix.get(0).getTransactionID());
+
+            FileDTLog reopened = new FileDTLog(logFile, node);
+            assertEquals(20, reopened.getNextSequenceNumber());
+            assertEquals(20, reopened.getLoggedMessages().size());
+
+            reopened.checkpoint(new ArrayList<>());
+            assertEquals(1, reopened.segments.size());
+            assertEquals(2, logFile.list().length);     // the checkpoint's segment and the manifest
+            assertEquals(COMMIT, reopened.getDecisionFor(TXID).getCommand());
+            assertEquals(21, new FileDTLog(logFile, node).getNextSequenceNumber());
+        }
+        finally {
+            Common.LOG_SEGMENT_BYTES = segmentBytes;
+        }
+    }
+
+    @Test
+    public void iterators_readBackwardsAndByTransaction_acrossSegments() {
+        final long segmentBytes = Common.LOG_SEGMENT_BYTES;
+        Common.LOG_SEGMENT_BYTES = 64;
+        try {
+            node.setDtLog(new FileDTLog(logFile, node));
+            for (int i = 0; i < 10; i++) {
+                AddRequest add = new AddRequest(new SongTuple("song "+i, A_URL), TXID+i, A_PEER_REFS);
+                node.logMessage(add);
+                node.logMessage(new YesResponse(add));
+                node.logMessage(i%2 == 0 ? new CommitRequest(TXID+i) : new AbortRequest(TXID+i));
+            }
+
+            FileDTLog reopened = new FileDTLog(logFile, node);
+            Iterator<Message> newestFirst = reopened.readLogBackwards();
+            assertEquals(ABORT, newestFirst.next().getCommand());
+            assertEquals(YES, newestFirst.next().getCommand());
+            assertEquals(ADD, newestFirst.next().getCommand());
+            assertEquals(TXID+8, newestFirst.next().getTransactionID());
+
+            List<Message> txn = new ArrayList<>();
+            reopened.readLog(TXID+3).forEachRemaining(txn::add);
+            assertEquals(3, txn.size());
+            assertEquals(ABORT, txn.get(2).getCommand());
+
+            assertEquals(30, reopened.streamLog().count());
+            assertEquals(COMMIT, reopened.getDecisionFor(TXID+4).getCommand());
+            assertNull(reopened.getDecisionFor(TXID+10));
+        }
+        finally {
+            Common.LOG_SEGMENT_BYTES = segmentBytes;
+        }
+    }
+
+    @Test
+    public void preallocated_segmentsKeepTheirSize_andTornTailIsZeroedOnReopen() throws Exception {
+        final long segmentBytes = Common.LOG_SEGMENT_BYTES;
+        Common.LOG_SEGMENT_BYTES = 4096;
+        try {
+            FileDTLog log = new FileDTLog(logFile, node, FileDTLog.NO_GROUP_COMMIT, true);
+            node.setDtLog(log);
+            node.logMessage(new CommitRequest(TXID));
+            node.logMessage(new AbortRequest(TXID+1));
+            assertEquals(4096, log.segmentFile(0).length());
+
+            /* a torn record followed by an intact one, as a partly persisted batch might leave */
+            ByteBuffer stray = MessageCodec.encode(new CommitRequest(TXID+9));
+            byte[] torn = new byte[stray.remaining()];
+            torn[3] = 2;
+            torn[4] = 42;
+            try (RandomAccessFile raf = new RandomAccessFile(log.segmentFile(0), "rw")) {
+                raf.seek(stray.remaining()*2);
+                raf.write(torn);
+                raf.getChannel().write(stray, raf.getFilePointer());
+            }
+
+            FileDTLog reopened = new FileDTLog(logFile, node, FileDTLog.NO_GROUP_COMMIT, true);
+            reopened.log(new CommitRequest(TXID+2));
+            assertEquals(4096, reopened.segmentFile(0).length());
+
+            List<Message> logged = new ArrayList<>(new FileDTLog(logFile, node, FileDTLog.NO_GROUP_COMMIT, true).getLoggedMessages());
+            assertEquals(3, logged.size());
+            assertEquals(TXID+2, logged.get(2).getTransactionID());
+            assertNull(reopened.getDecisionFor(TXID+9));
+        }
+        finally {
+            Common.LOG_SEGMENT_BYTES = segmentBytes;
+        }
+    }
+
+    @Test
+    public void writerThread_batchesQueuedRecords_andReadsSeeEverythingQueuedBeforeThem() {
+        FileDTLog log = new FileDTLog(logFile, node, 0);
+        node.setDtLog(log);
+        log.startWriterThread();
+
+        List<CompletableFuture<Void>> durable = new ArrayList<>();
+        List<SongTuple> playlist = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            AddRequest add = new AddRequest(new SongTuple("song "+i, A_URL), TXID+i, A_PEER_REFS);
+            playlist.add(add.getSongTuple());
+            durable.add(node.logMessage(add));
+            durable.add(node.logMessage(new CommitRequest(TXID+i)));
+        }
+        log.checkpoint(playlist);
+        node.logMessage(new AbortRequest(TXID+50));
+
+        assertEquals(ABORT, log.getDecisionFor(TXID+50).getCommand());
+        assertTrue(durable.stream().allMatch(CompletableFuture::isDone));
+        assertEquals(COMMIT, log.getDecisionFor(TXID+49).getCommand());
+
+        List<Message> logged = new ArrayList<>(new FileDTLog(logFile, node).getLoggedMessages());
+        assertEquals(2, logged.size());
+        assertEquals(CHECKPOINT, logged.get(0).getCommand());
+    }
+
+    @Test
+    public void close_failsWritesSubmittedAfterIt_ratherThanLeavingThemQueued() {
+        FileDTLog log = new FileDTLog(logFile, node, 0);
+        node.setDtLog(log);
+        log.startWriterThread();
+
+        AddRequest add = new AddRequest(A_SONG_TUPLE, TXID, A_PEER_REFS);
+        CompletableFuture<Void> beforeClose = node.logMessage(add);
+        log.close();
+        CompletableFuture<Void> afterClose = node.logMessage(new CommitRequest(TXID));
+
+        assertTrue(beforeClose.isDone() && !beforeClose.isCompletedExceptionally());
+        assertTrue(afterClose.isCompletedExceptionally());
+        List<Message> logged = new ArrayList<>(new FileDTLog(logFile, node).getLoggedMessages());
+        assertEquals(1, logged.size());
+        assertEquals(ADD, logged.get(0).getCommand());
+    }
+}
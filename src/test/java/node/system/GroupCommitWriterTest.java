@@ -0,0 +1,41 @@
+package node.system;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.fail;
+
+public class GroupCommitWriterTest {
+
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static void assertCommitFails(GroupCommitWriter writer, GroupCommitWriter.Batch batch) {
+        try {
+            writer.commit(batch);
+            fail("batch should have failed");
+        }
+        catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void failedBatch_isReportedToLateWaiters_evenAfterALaterBatchFailsToo() throws Exception {
+        FileChannel channel = FileChannel.open(tmp.newFile().toPath(), StandardOpenOption.WRITE);
+        channel.close();    // so every write fails
+        GroupCommitWriter writer = new GroupCommitWriter(channel, 0);
+
+        GroupCommitWriter.Batch first = writer.enqueue(ByteBuffer.wrap(new byte[]{1}));
+        assertCommitFails(writer, first);
+        GroupCommitWriter.Batch second = writer.enqueue(ByteBuffer.wrap(new byte[]{2}));
+        assertCommitFails(writer, second);
+
+        /* an appender of the first batch that only now gets to look */
+        assertCommitFails(writer, first);
+    }
+}
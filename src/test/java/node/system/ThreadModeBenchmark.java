@@ -0,0 +1,94 @@
+package node.system;
+
+import util.Common;
+import util.NodeThreads;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Shows what a node's timeout timers cost in threads and memory as its peer count grows:
+ *
+ *      java -cp target/classes:target/test-classes node.system.ThreadModeBenchmark
+ *
+ * For each thread mode, one node starts a timer for each of 50, 200 and 1000 simulated
+ * peers, and the live threads, heap, and committed process memory it took are printed.
+ * On a JVM without virtual threads the "virtual" rows fall back to platform threads.
+ * Not run as part of the tests.
+ */
+public class ThreadModeBenchmark {
+
+    static final int[] PEER_COUNTS = {50, 200, 1000};
+
+    /* a node that, unlike other SyncNodes, really runs its timers */
+    static class TimedNode extends SyncNode {
+        TimedNode() {
+            super(1, null);
+        }
+
+        @Override public void addTimerFor(int peerID) {
+            timeoutMonitor.startTimer(peerID);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        /* long enough that no timer goes off while we're measuring */
+        Common.MESSAGE_DELAY = 60*1000;
+
+        System.out.printf("%-10s %8s %10s %10s %14s%n", "mode", "peers", "threads", "heap KB", "committed KB");
+        for (String mode : new String[]{NodeThreads.PLATFORM, NodeThreads.VIRTUAL}) {
+            NodeThreads.setFactory(NodeThreads.factoryFor(mode));
+            for (int peers : PEER_COUNTS) {
+                run(mode, peers);
+            }
+        }
+        System.exit(Common.EXIT_SUCCESS);
+    }
+
+    private static void run(String mode, int peers) throws InterruptedException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        settle();
+        int threadsBefore = threads.getThreadCount();
+        long heapBefore = heapUsed();
+        long committedBefore = committedMemory();
+
+        TimedNode node = new TimedNode();
+        for (int peerID = 2; peerID < peers+2; peerID++) {
+            node.addTimerFor(peerID);
+        }
+        settle();
+        System.out.printf("%-10s %8d %10d %10d %14s%n",
+                mode,
+                peers,
+                threads.getThreadCount()-threadsBefore,
+                (heapUsed()-heapBefore)/1024,
+                committedBefore < 0 ? "n/a" : String.valueOf((committedMemory()-committedBefore)/1024));
+
+        for (int peerID = 2; peerID < peers+2; peerID++) {
+            node.cancelTimersFor(peerID);
+        }
+    }
+
+    private static void settle() throws InterruptedException {
+        Thread.sleep(500);
+        System.gc();
+        Thread.sleep(100);
+    }
+
+    private static long heapUsed() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * @return the process's committed virtual memory, which (unlike the heap) includes
+     *         thread stacks; or -1 if this JVM doesn't report it
+     */
+    private static long committedMemory() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getCommittedVirtualMemorySize();
+        }
+        return -1;
+    }
+}
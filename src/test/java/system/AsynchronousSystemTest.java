@@ -2,7 +2,9 @@ package system;
 
 import console.ConsoleCommand;
 import jdk.nashorn.internal.ir.annotations.Ignore;
+import messages.CommitRequest;
 import messages.Message;
+import messages.YesResponse;
 import messages.vote_req.AddRequest;
 import messages.vote_req.DeleteRequest;
 import messages.vote_req.UpdateRequest;
@@ -12,16 +14,17 @@ import node.system.FileDTLog;
 import org.junit.Before;
 import org.junit.Test;
 import util.Common;
+import util.SongTuple;
 import util.TestCommon;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import static messages.Message.Command.ABORT;
@@ -39,15 +42,7 @@ public class AsynchronousSystemTest extends TestCommon {
     String particLogString() { return readLogNum(2); }
 
     String readLogNum(int nodeID) {
-        try {
-            return new String(
-                    Files.readAllBytes(
-                            new File(Common.LOG_DIR, String.valueOf(nodeID)).toPath()));
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-            return null;
-        }
+        return new FileDTLog(new File(Common.LOG_DIR, String.valueOf(nodeID)), null).getLogAsString();
     }
 
     @Before
@@ -80,6 +75,19 @@ public class AsynchronousSystemTest extends TestCommon {
         assertThat(particLog, containsString("COMMIT  1"));
     }
 
+    @Test
+    public void testSubmittedRequests_allOutstandingAtOnce() throws Exception {
+        List<CompletableFuture<Message>> decisions = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            VoteRequest add = new AddRequest(new SongTuple("song"+i, A_URL), system.txnMgr.getNextTransactionID(), peerReferences);
+            decisions.add(system.submit(add));
+        }
+        for (CompletableFuture<Message> decision : decisions) {
+            assertEquals(COMMIT, decision.get(10, TimeUnit.SECONDS).getCommand());
+        }
+        system.killAllNodes();
+    }
+
     @Test
     public void testAddThenUpdateRequestsCommit() throws Exception {
         VoteRequest add = new AddRequest(A_SONG_TUPLE, TXID, peerReferences);
@@ -191,11 +199,12 @@ public class AsynchronousSystemTest extends TestCommon {
         */
 
         final File logFile2 = new File("logDir", "2");
-        PrintWriter p = new PrintWriter(new FileWriter(logFile2));
-        p.println("[2 2015-03-06T22:46:43.773Z] ADD  1  5  1  3006  2  3002  3  3001  4  3003  5  3004  a_song  a_url");
-        p.println("[2 2015-03-06T22:46:43.780Z] YES  1");
-        p.println("[2 2015-03-06T22:46:44.797Z] COMMIT  1");
-        p.flush();
+        AsynchronousSystem.deleteRecursively(logFile2);
+        FileDTLog log2 = new FileDTLog(logFile2, null);
+        VoteRequest add = new AddRequest(new SongTuple("a_song", "a_url"), TXID, peerReferences);
+        log2.log(add);
+        log2.log(new YesResponse(add));
+        log2.log(new CommitRequest(TXID));
 
         system.getTxnMgr().restartNodeWithID(2);
         Thread.sleep(Common.TIMEOUT_MILLISECONDS());
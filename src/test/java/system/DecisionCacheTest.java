@@ -0,0 +1,33 @@
+package system;
+
+import messages.AbortRequest;
+import messages.CommitRequest;
+import messages.Message.Command;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class DecisionCacheTest {
+
+    @Test
+    public void recordedDecision_isAnsweredByTransactionID() throws Exception {
+        DecisionCache cache = new DecisionCache(4);
+        cache.record(new CommitRequest(1));
+        cache.record(new AbortRequest(2));
+        assertEquals(Command.COMMIT, cache.get(1).getCommand());
+        assertEquals(Command.ABORT, cache.get(2).getCommand());
+        assertNull(cache.get(3));
+    }
+
+    @Test
+    public void fullCache_evictsTheOldestDecision() throws Exception {
+        DecisionCache cache = new DecisionCache(2);
+        cache.record(new CommitRequest(1));
+        cache.record(new CommitRequest(2));
+        cache.record(new CommitRequest(3));
+        assertNull(cache.get(1));
+        assertEquals(3, cache.get(3).getTransactionID());
+        assertEquals(2, cache.size());
+    }
+}
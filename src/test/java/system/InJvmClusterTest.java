@@ -0,0 +1,128 @@
+package system;
+
+import messages.Message;
+import messages.PeerTimeout;
+import messages.vote_req.AddRequest;
+import node.PeerReference;
+import node.system.AsyncProcessNode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import util.Common;
+import util.SongTuple;
+import util.TestCommon;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static messages.Message.Command.COMMIT;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class InJvmClusterTest extends TestCommon {
+    AsynchronousSystem system;
+    List<PeerReference> peerReferences;
+
+    @Before
+    public void setUp() throws Exception {
+        Common.NODES_IN_JVM = true;
+        system = new AsynchronousSystem(3);
+        peerReferences = system.txnMgr.getNodes().stream()
+                                      .map(ManagerNodeRef::asPeerNode)
+                                      .collect(Collectors.toList());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        system.killAllNodes();
+        Common.NODES_IN_JVM = false;
+    }
+
+    private AsyncProcessNode awaitNode(int nodeID) throws InterruptedException {
+        InJvmManagerNodeRef ref = (InJvmManagerNodeRef) system.txnMgr.getNodeByID(nodeID);
+        for (int i = 0; i < 500 && ref.getNode() == null; i++) {
+            Thread.sleep(Common.TIMER_TICK_MILLISECONDS);
+        }
+        return ref.getNode();
+    }
+
+    @Test
+    public void addRequest_commitsOnEveryNode() throws Exception {
+        AddRequest add = new AddRequest(A_SONG_TUPLE, system.txnMgr.getNextTransactionID(), peerReferences);
+        assertEquals(COMMIT, system.processRequestToCompletion(add).getCommand());
+        Thread.sleep(Common.TIMEOUT_MILLISECONDS());
+        for (int nodeID = 1; nodeID <= 3; nodeID++) {
+            assertTrue(awaitNode(nodeID).hasExactSongTuple(A_SONG_TUPLE));
+        }
+    }
+
+    @Test
+    public void restartedNode_recoversFromItsLogOnTheSamePort() throws Exception {
+        AddRequest add = new AddRequest(A_SONG_TUPLE, system.txnMgr.getNextTransactionID(), peerReferences);
+        assertEquals(COMMIT, system.processRequestToCompletion(add).getCommand());
+        Thread.sleep(Common.TIMEOUT_MILLISECONDS());
+        int port = system.txnMgr.getNodeByID(3).getListenPort();
+        AsyncProcessNode before = awaitNode(3);
+
+        system.txnMgr.restartNodeWithID(3);
+        AsyncProcessNode after = awaitNode(3);
+
+        assertNotNull(after);
+        assertTrue(before.isCrashed());
+        assertTrue(after.hasExactSongTuple(A_SONG_TUPLE));
+        assertEquals(port, system.txnMgr.getNodeByID(3).getListenPort());
+    }
+
+    @Test
+    public void restartedCoordinator_isDubbedAgainForTheNextRequest() throws Exception {
+        AddRequest add = new AddRequest(A_SONG_TUPLE, system.txnMgr.getNextTransactionID(), peerReferences);
+        assertEquals(COMMIT, system.processRequestToCompletion(add).getCommand());
+        Thread.sleep(Common.TIMEOUT_MILLISECONDS());
+
+        system.txnMgr.restartNodeWithID(1);
+        assertNotNull(awaitNode(1));
+        Thread.sleep(Common.TIMEOUT_MILLISECONDS());
+
+        AddRequest another = new AddRequest(new SongTuple("another", A_URL), system.txnMgr.getNextTransactionID(), peerReferences);
+        Message decision = system.txnMgr.startTransaction(another)
+                                        .get(Common.TIMEOUT_MILLISECONDS()*4, TimeUnit.MILLISECONDS);
+        assertEquals(COMMIT, decision.getCommand());
+    }
+
+    @Test
+    public void revivedCoordinator_isDubbedAgainForTheNextRequest() throws Exception {
+        AddRequest add = new AddRequest(A_SONG_TUPLE, system.txnMgr.getNextTransactionID(), peerReferences);
+        assertEquals(COMMIT, system.processRequestToCompletion(add).getCommand());
+        Thread.sleep(Common.TIMEOUT_MILLISECONDS());
+
+        system.killNode(1);
+        system.txnMgr.receiveResponse(new PeerTimeout(1));
+        assertNotNull(awaitNode(1));
+        Thread.sleep(Common.TIMEOUT_MILLISECONDS());
+
+        AddRequest another = new AddRequest(new SongTuple("another", A_URL), system.txnMgr.getNextTransactionID(), peerReferences);
+        Message decision = system.txnMgr.startTransaction(another)
+                                        .get(Common.TIMEOUT_MILLISECONDS()*4, TimeUnit.MILLISECONDS);
+        assertEquals(COMMIT, decision.getCommand());
+    }
+
+    @Test
+    public void restartedBackToBack_keepsListeningOnTheSamePort() throws Exception {
+        AsyncProcessNode before = awaitNode(3);
+        Thread.sleep(Common.TIMEOUT_MILLISECONDS());
+        int port = system.txnMgr.getNodeByID(3).getListenPort();
+
+        for (int restart = 0; restart < 3; restart++) {
+            system.txnMgr.restartNodeWithID(3);
+            AsyncProcessNode after = awaitNode(3);
+            assertNotNull(after);
+            assertTrue(before.isCrashed());
+            before = after;
+        }
+        Thread.sleep(Common.TIMEOUT_MILLISECONDS());
+
+        assertEquals(port, system.txnMgr.getNodeByID(3).getListenPort());
+    }
+}
@@ -1,5 +1,6 @@
 package system;
 
+import messages.Message;
 import messages.vote_req.AddRequest;
 import messages.vote_req.DeleteRequest;
 import messages.vote_req.UpdateRequest;
@@ -8,9 +9,13 @@ import node.PeerReference;
 import node.system.SyncNode;
 import org.junit.Before;
 import org.junit.Test;
+import util.SongTuple;
 import util.TestCommon;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 import static messages.Message.Command.ABORT;
@@ -171,4 +176,40 @@ public class SynchronousSystemTest extends TestCommon {
         assertFalse(coordinator.hasExactSongTuple(A_SONG_TUPLE));
         assertTrue(participant.hasExactSongTuple(A_SONG_TUPLE));
     }
+
+    @Test
+    public void testSubmittedRequests_committedTogether() throws Exception {
+        List<VoteRequest> requests = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            requests.add(new AddRequest(new SongTuple("song"+i, A_URL), system.txnMgr.getNextTransactionID(), peerReferences));
+        }
+        Map<Integer, Message> decisions = system.submitToCompletion(requests);
+
+        for (VoteRequest request : requests) {
+            assertEquals(COMMIT, decisions.get(request.getTransactionID()).getCommand());
+        }
+        assertTrue(participant.hasSong("song0"));
+        assertTrue(participant.hasSong("song4"));
+        /* all five went through one transaction */
+        assertEquals(1, participant.getDtLog().getLoggedMessages().stream()
+                                   .filter(m -> m.getCommand() == COMMIT).count());
+    }
+
+    @Test
+    public void testSubmittedRequests_oneInvalid_onlyItAborts() throws Exception {
+        for (ManagerNodeRef node : system.txnMgr.getNodes()) {
+            ((SyncManagerNodeRef) node).getNode().addSongToPlaylist(A_SONG_TUPLE);
+        }
+
+        VoteRequest first = new AddRequest(new SongTuple("first", A_URL), system.txnMgr.getNextTransactionID(), peerReferences);
+        VoteRequest repeat = new AddRequest(A_SONG_TUPLE, system.txnMgr.getNextTransactionID(), peerReferences);
+        VoteRequest last = new DeleteRequest(A_SONG_NAME, system.txnMgr.getNextTransactionID(), peerReferences);
+        Map<Integer, Message> decisions = system.submitToCompletion(Arrays.asList(first, repeat, last));
+
+        assertEquals(COMMIT, decisions.get(first.getTransactionID()).getCommand());
+        assertEquals(ABORT, decisions.get(repeat.getTransactionID()).getCommand());
+        assertEquals(COMMIT, decisions.get(last.getTransactionID()).getCommand());
+        assertTrue(participant.hasSong("first"));
+        assertFalse(participant.hasSong(A_SONG_NAME));
+    }
 }
@@ -0,0 +1,59 @@
+package system.network;
+
+import org.junit.Test;
+
+import java.util.LinkedList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionTableTest {
+
+    private static Connection connectionTo(int peerID) {
+        return new QueueConnection(peerID, new LinkedList<>(), new LinkedList<>());
+    }
+
+    @Test
+    public void reconnecting_replacesThePeersConnection() throws Exception {
+        ConnectionTable table = new ConnectionTable();
+        Connection first = connectionTo(2);
+        Connection second = connectionTo(2);
+        table.add(first);
+        assertSame(first, table.put(second));
+        assertSame(second, table.get(2));
+        assertEquals(1, table.size());
+        assertFalse(table.contains(first));
+    }
+
+    @Test
+    public void removingAStaleConnection_keepsItsReplacement() throws Exception {
+        ConnectionTable table = new ConnectionTable();
+        Connection stale = connectionTo(3);
+        Connection current = connectionTo(3);
+        table.add(stale);
+        table.add(current);
+        assertFalse(table.remove(stale));
+        assertTrue(table.isConnectedTo(3));
+        assertTrue(table.remove(current));
+        assertNull(table.get(3));
+    }
+
+    @Test
+    public void iterating_toleratesConcurrentChanges() throws Exception {
+        ConnectionTable table = new ConnectionTable();
+        for (int i = 1; i <= 5; i++) {
+            table.add(connectionTo(i));
+        }
+        int seen = 0;
+        for (Connection connection : table) {
+            table.remove(connection);
+            table.add(connectionTo(connection.getReceiverID()+10));
+            seen++;
+        }
+        assertTrue(seen >= 5);
+        assertEquals(5, table.size());
+    }
+}
@@ -0,0 +1,124 @@
+package system.network;
+
+import messages.DelayMessage;
+import messages.InRecoveryResponse;
+import messages.Message;
+import messages.NodeMessage;
+import messages.StateRequest;
+import messages.vote_req.AddRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import system.failures.DeathAfter;
+import system.failures.PartialBroadcast;
+import util.TestCommon;
+
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static messages.Message.Command.PRE_COMMIT;
+import static messages.Message.Command.STATE_REQUEST;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class NioTransportTest extends TestCommon {
+
+    /* what a receiver pulls off a connection when it has closed */
+    static final Message CLOSED = new DelayMessage(-1);
+
+    NioTransport senderSide;
+    NioTransport receiverSide;
+    NioConnection sender;
+    BlockingQueue<NodeMessage> hellos = new LinkedBlockingQueue<>();
+    BlockingQueue<Message> received = new LinkedBlockingQueue<>();
+
+    @Before
+    public void setUp() throws Exception {
+        receiverSide = new NioTransport("receiver", (conn, msgsRcvd) -> {
+            try {
+                Message message = conn.receiveMessage();
+                received.add(message == null ? CLOSED : message);
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+            return true;
+        }, (conn, hello) -> hellos.add(hello));
+        senderSide = new NioTransport("sender", (conn, msgsRcvd) -> true, (conn, hello) -> {});
+        sender = senderSide.connect(receiverSide.getListenPort(), 1);
+        sender.sendMessage(new NodeMessage(2, senderSide.getListenPort()));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        senderSide.shutdown();
+        receiverSide.shutdown();
+    }
+
+    private Message roundTrip(Message message) throws Exception {
+        sender.sendMessage(message);
+        return received.poll(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void handshake_isConsumedByTheAcceptor() throws Exception {
+        NodeMessage hello = hellos.poll(5, TimeUnit.SECONDS);
+        assertEquals(2, hello.getNodeID());
+        assertEquals(senderSide.getListenPort(), hello.getListenPort());
+        assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void closing_deliversOneLastNullMessage() throws Exception {
+        hellos.poll(5, TimeUnit.SECONDS);
+        sender.close();
+        assertEquals(CLOSED, received.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void manyMessages_arriveInOrder() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            sender.sendMessage(new StateRequest(i));
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, received.poll(5, TimeUnit.SECONDS).getTransactionID());
+        }
+    }
+
+    @Test
+    public void voteRequest_roundTripsWithPeerSetAndSong() throws Exception {
+        AddRequest read = (AddRequest) roundTrip(new AddRequest(A_SONG_TUPLE, TXID, A_PEER_REFS));
+        assertEquals(TXID, read.getTransactionID());
+        assertEquals(A_SONG_TUPLE, read.getSongTuple());
+        assertEquals(A_PEER_REFS.size(), read.getPeerSet().size());
+    }
+
+    @Test
+    public void previouslyUnencodableMessages_roundTripEveryField() throws Exception {
+        InRecoveryResponse inRecovery = (InRecoveryResponse) roundTrip(new InRecoveryResponse(TXID, Arrays.asList(1, 3)));
+        assertEquals(TXID, inRecovery.getTransactionID());
+        assertEquals(Arrays.asList(1, 3), inRecovery.getLastUpSet());
+
+        assertEquals(7, ((DelayMessage) roundTrip(new DelayMessage(7))).getDelaySec());
+
+        NodeMessage node = (NodeMessage) roundTrip(new NodeMessage(4, 5678));
+        assertEquals(4, node.getNodeID());
+        assertEquals(5678, node.getListenPort());
+
+        PartialBroadcast partial = (PartialBroadcast) roundTrip(new PartialBroadcast(PRE_COMMIT, 2, 3));
+        assertEquals(PRE_COMMIT, partial.getStage());
+        assertEquals(2, partial.getCountProcs());
+        assertEquals(3, partial.getWhichProc());
+
+        DeathAfter death = (DeathAfter) roundTrip(new DeathAfter(5, 1, DeathAfter.ELECTION_DEATH));
+        assertEquals(5, death.getNumMsgs());
+        assertEquals(1, death.getFromProc());
+        assertEquals(DeathAfter.ELECTION_DEATH, death.getWhichProc());
+
+        Message stateRequest = roundTrip(new StateRequest(TXID));
+        assertEquals(STATE_REQUEST, stateRequest.getCommand());
+        assertEquals(TXID, stateRequest.getTransactionID());
+    }
+}
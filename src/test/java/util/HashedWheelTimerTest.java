@@ -0,0 +1,54 @@
+package util;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HashedWheelTimerTest {
+
+    @Test
+    public void timeout_goesOffNoSoonerThanItsDelay() throws Exception {
+        HashedWheelTimer wheel = new HashedWheelTimer(5, 8);
+        CountDownLatch fired = new CountDownLatch(1);
+        long start = System.nanoTime();
+        HashedWheelTimer.Timeout timeout = wheel.schedule(fired::countDown, 50);
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime()-start >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertFalse(timeout.isScheduled());
+        assertFalse(timeout.cancel());
+    }
+
+    @Test
+    public void cancelledTimeouts_neverGoOff() throws Exception {
+        HashedWheelTimer wheel = new HashedWheelTimer(5, 8);
+        AtomicInteger fired = new AtomicInteger();
+        CountDownLatch last = new CountDownLatch(1);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(wheel.schedule(fired::incrementAndGet, 20).cancel());
+        }
+        wheel.schedule(last::countDown, 40);
+        assertTrue(last.await(2, TimeUnit.SECONDS));
+        assertEquals(0, fired.get());
+    }
+
+    @Test
+    public void timeoutsSeveralRevolutionsAway_waitForTheirOwnTick() throws Exception {
+        /* 8 slots of 5ms go round every 40ms */
+        HashedWheelTimer wheel = new HashedWheelTimer(5, 8);
+        CountDownLatch near = new CountDownLatch(1);
+        CountDownLatch far = new CountDownLatch(1);
+        long start = System.nanoTime();
+        wheel.schedule(near::countDown, 10);
+        wheel.schedule(far::countDown, 130);
+        assertTrue(near.await(2, TimeUnit.SECONDS));
+        assertEquals(1, far.getCount());
+        assertTrue(far.await(2, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime()-start >= TimeUnit.MILLISECONDS.toNanos(130));
+    }
+}
@@ -0,0 +1,100 @@
+package util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MailboxTest {
+
+    @Test
+    public void tasksFromOneThread_runInOrder() throws Exception {
+        Mailbox mailbox = new Mailbox("test");
+        List<Integer> ran = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(1);
+        for (int i = 0; i < 500; i++) {
+            final int n = i;
+            mailbox.execute(() -> ran.add(n));
+        }
+        mailbox.execute(done::countDown);
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        for (int i = 0; i < 500; i++) {
+            assertEquals(i, (int) ran.get(i));
+        }
+    }
+
+    @Test
+    public void tasksFromManyThreads_neverOverlap() throws Exception {
+        Mailbox mailbox = new Mailbox("test");
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger overlaps = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(8*200);
+        for (int t = 0; t < 8; t++) {
+            new Thread(() -> {
+                for (int i = 0; i < 200; i++) {
+                    mailbox.execute(() -> {
+                        if (running.incrementAndGet() > 1) {
+                            overlaps.incrementAndGet();
+                        }
+                        running.decrementAndGet();
+                        done.countDown();
+                    });
+                }
+            }).start();
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(0, overlaps.get());
+    }
+
+    @Test
+    public void burstsOfTasks_areAllDrainedByOneThread() throws Exception {
+        /* other tests' nodes may still be starting threads, so only this mailbox's are counted */
+        List<Thread> created = Collections.synchronizedList(new ArrayList<>());
+        ThreadFactory platform = NodeThreads.factoryFor(NodeThreads.PLATFORM);
+        NodeThreads.setFactory(runnable -> {
+            Thread thread = platform.newThread(runnable);
+            created.add(thread);
+            return thread;
+        });
+        Mailbox mailbox = new Mailbox("bursty");
+        try {
+            for (int burst = 0; burst < 10; burst++) {
+                CountDownLatch done = new CountDownLatch(300);
+                for (int i = 0; i < 300; i++) {
+                    mailbox.execute(done::countDown);
+                }
+                assertTrue(done.await(2, TimeUnit.SECONDS));
+                Thread.sleep(20);
+            }
+            synchronized (created) {
+                assertEquals(1, created.stream().filter(thread -> thread.getName().equals("bursty")).count());
+            }
+        }
+        finally {
+            mailbox.close();
+            NodeThreads.setFactory(NodeThreads.factoryFor(Common.THREAD_MODE));
+        }
+    }
+
+    @Test
+    public void close_dropsTasksGivenAfterIt() throws Exception {
+        Mailbox mailbox = new Mailbox("test");
+        CountDownLatch first = new CountDownLatch(1);
+        mailbox.execute(first::countDown);
+        assertTrue(first.await(2, TimeUnit.SECONDS));
+
+        mailbox.close();
+        AtomicInteger ranAfterClose = new AtomicInteger();
+        mailbox.execute(ranAfterClose::incrementAndGet);
+        Thread.sleep(50);
+        assertEquals(0, ranAfterClose.get());
+    }
+}